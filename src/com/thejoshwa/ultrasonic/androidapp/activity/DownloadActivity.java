@@ -1222,13 +1222,16 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 			@Override
 			public void drop(int from, int to)
 			{
-				if (from != to)
+				DownloadService downloadService = getDownloadService();
+
+				if (from != to && downloadService != null)
 				{
 					DownloadFile item = adapter.getItem(from);
 					adapter.remove(item);
 					adapter.notifyDataSetChanged();
 					adapter.insert(item, to);
 					adapter.notifyDataSetChanged();
+					downloadService.swap(true, from, to);
 				}
 			}
 
@@ -1258,6 +1261,7 @@ public class DownloadActivity extends SubsonicTabActivity implements OnGestureLi
 
 				adapter.remove(item);
 				adapter.notifyDataSetChanged();
+				downloadService.remove(item);
 
 				String songRemoved = String.format(getResources().getString(R.string.download_song_removed), item.getSong().getTitle());
 
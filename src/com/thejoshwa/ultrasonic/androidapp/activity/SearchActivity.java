@@ -46,6 +46,7 @@ import com.thejoshwa.ultrasonic.androidapp.util.MergeAdapter;
 import com.thejoshwa.ultrasonic.androidapp.util.TabActivityBackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 import com.thejoshwa.ultrasonic.androidapp.view.ArtistAdapter;
+import com.thejoshwa.ultrasonic.androidapp.view.CoverArtPrefetcher;
 import com.thejoshwa.ultrasonic.androidapp.view.EntryAdapter;
 
 import java.util.ArrayList;
@@ -112,6 +113,7 @@ public class SearchActivity extends SubsonicTabActivity
 		}
 
 		list = (ListView) findViewById(R.id.search_list);
+		list.setOnScrollListener(new CoverArtPrefetcher(this));
 
 		list.setOnItemClickListener(new AdapterView.OnItemClickListener()
 		{
@@ -35,23 +35,26 @@ import android.widget.TextView;
 import com.handmark.pulltorefresh.library.PullToRefreshBase;
 import com.handmark.pulltorefresh.library.PullToRefreshListView;
 import com.thejoshwa.ultrasonic.androidapp.R;
+import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
 import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.domain.Share;
+import com.thejoshwa.ultrasonic.androidapp.service.CachedMusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.AlbumHeader;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DirectoryWalker;
 import com.thejoshwa.ultrasonic.androidapp.util.EntryByDiscAndTrackComparator;
 import com.thejoshwa.ultrasonic.androidapp.util.Pair;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 import com.thejoshwa.ultrasonic.androidapp.util.TabActivityBackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
+import com.thejoshwa.ultrasonic.androidapp.view.CoverArtPrefetcher;
 import com.thejoshwa.ultrasonic.androidapp.view.EntryAdapter;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
@@ -81,6 +84,32 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 	private MenuItem shareButton;
 	private boolean showHeader = true;
 	private Random random = new java.security.SecureRandom();
+	private String directoryId;
+	private boolean reloading;
+
+	private final CachedMusicService.RefreshListener refreshListener = new CachedMusicService.RefreshListener()
+	{
+		@Override
+		public void onDirectoryRefreshed(final String id, MusicDirectory directory)
+		{
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (!getIsDestroyed() && id.equals(directoryId))
+					{
+						reload();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onIndexesRefreshed(Indexes indexes)
+		{
+		}
+	};
 
 	/**
 	 * Called when the activity is first created.
@@ -95,6 +124,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 		refreshAlbumListView = (PullToRefreshListView) findViewById(R.id.select_album_entries);
 		albumListView = refreshAlbumListView.getRefreshableView();
+		refreshAlbumListView.setOnScrollListener(new CoverArtPrefetcher(this));
 
 		refreshAlbumListView.setOnRefreshListener(new OnRefreshListener<ListView>()
 		{
@@ -222,6 +252,22 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 		enableButtons();
 
+		View browseMenuItem = findViewById(R.id.menu_browse);
+		menuDrawer.setActiveView(browseMenuItem);
+
+		MusicServiceFactory.addRefreshListener(refreshListener);
+		load();
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		MusicServiceFactory.removeRefreshListener(refreshListener);
+		super.onDestroy();
+	}
+
+	private void load()
+	{
 		String id = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_ID);
 		boolean isAlbum = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_IS_ALBUM, false);
 		String name = getIntent().getStringExtra(Constants.INTENT_EXTRA_NAME_NAME);
@@ -239,9 +285,6 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		int albumListSize = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0);
 		int albumListOffset = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_OFFSET, 0);
 
-		View browseMenuItem = findViewById(R.id.menu_browse);
-		menuDrawer.setActiveView(browseMenuItem);
-
 		if (playlistId != null)
 		{
 			getPlaylist(playlistId, playlistName);
@@ -264,6 +307,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		}
 		else if (getVideos != 0)
 		{
+			directoryId = Constants.INTENT_EXTRA_NAME_VIDEOS;
 			getVideos();
 		}
 		else if (getRandomTracks != 0)
@@ -272,6 +316,9 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		}
 		else
 		{
+			// The "all songs" entry is built from its parent, so it has to be reloaded when that changes
+			directoryId = allSongsId.equals(id) ? parentId : id;
+
 			if (!Util.isOffline(SelectAlbumActivity.this) && Util.getShouldUseId3Tags(SelectAlbumActivity.this))
 			{
 				if (isAlbum)
@@ -389,6 +436,17 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 		return songs;
 	}
 
+	/**
+	 * Shows a directory again after it was refreshed in the background. The fresh copy is already cached,
+	 * so this is quick and done without a progress indicator.
+	 */
+	private void reload()
+	{
+		reloading = true;
+		getIntent().removeExtra(Constants.INTENT_EXTRA_NAME_REFRESH);
+		load();
+	}
+
 	private void refresh()
 	{
 		finish();
@@ -518,17 +576,25 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 				{
 					boolean refresh = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_REFRESH, false);
 					MusicDirectory musicDirectory = service.getMusicDirectory(parentId, name, refresh, SelectAlbumActivity.this, this);
+					final MusicService musicService = service;
+					final ProgressListener progressListener = this;
 
-					List<MusicDirectory.Entry> songs = new LinkedList<MusicDirectory.Entry>();
-					getSongsRecursively(musicDirectory, songs);
-
-					for (MusicDirectory.Entry song : songs)
+					DirectoryWalker walker = new DirectoryWalker(Util.getDirectoryConcurrency(SelectAlbumActivity.this))
 					{
-						if (!song.isDirectory())
+						@Override
+						protected MusicDirectory load(MusicDirectory.Entry directory) throws Exception
 						{
-							root.addChild(song);
+							return musicService.getMusicDirectory(directory.getId(), directory.getTitle(), false, SelectAlbumActivity.this, progressListener);
 						}
-					}
+
+						@Override
+						protected boolean isSubdirectory(MusicDirectory.Entry entry)
+						{
+							return entry.isDirectory() && !allSongsId.equals(entry.getId());
+						}
+					};
+
+					root.addAll(walker.walk(musicDirectory));
 				}
 				else
 				{
@@ -562,31 +628,6 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 				return root;
 			}
-
-			private void getSongsRecursively(MusicDirectory parent, List<MusicDirectory.Entry> songs) throws Exception
-			{
-				for (MusicDirectory.Entry song : parent.getChildren(false, true))
-				{
-					if (!song.isVideo() && !song.isDirectory())
-					{
-						songs.add(song);
-					}
-				}
-
-				MusicService musicService = MusicServiceFactory.getMusicService(SelectAlbumActivity.this);
-
-				for (MusicDirectory.Entry dir : parent.getChildren(true, false))
-				{
-					MusicDirectory root;
-
-					if (!allSongsId.equals(dir.getId()))
-					{
-						root = musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, SelectAlbumActivity.this, this);
-
-						getSongsRecursively(root, songs);
-					}
-				}
-			}
 		}.execute();
 	}
 
@@ -648,20 +689,26 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 				if (allSongsId.equals(id))
 				{
-					MusicDirectory root = new MusicDirectory();
-
-					Collection<MusicDirectory.Entry> songs = new LinkedList<MusicDirectory.Entry>();
-					getSongsForArtist(parentId, songs);
+					final MusicService musicService = service;
+					final ProgressListener progressListener = this;
 
-					for (MusicDirectory.Entry song : songs)
+					DirectoryWalker walker = new DirectoryWalker(Util.getDirectoryConcurrency(SelectAlbumActivity.this))
 					{
-						if (!song.isDirectory())
+						@Override
+						protected MusicDirectory load(MusicDirectory.Entry album) throws Exception
 						{
-							root.addChild(song);
+							return musicService.getAlbum(album.getId(), "", false, SelectAlbumActivity.this, progressListener);
 						}
-					}
 
-					musicDirectory = root;
+						@Override
+						protected boolean isSubdirectory(MusicDirectory.Entry entry)
+						{
+							return !allSongsId.equals(entry.getId());
+						}
+					};
+
+					musicDirectory = new MusicDirectory();
+					musicDirectory.addAll(walker.walk(service.getArtist(parentId, "", false, SelectAlbumActivity.this, this)));
 				}
 				else
 				{
@@ -670,28 +717,6 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 				return musicDirectory;
 			}
-
-			private void getSongsForArtist(String id, Collection<MusicDirectory.Entry> songs) throws Exception
-			{
-				MusicService musicService = MusicServiceFactory.getMusicService(SelectAlbumActivity.this);
-				MusicDirectory artist = musicService.getArtist(id, "", false, SelectAlbumActivity.this, this);
-
-				for (MusicDirectory.Entry album : artist.getChildren())
-				{
-					if (!allSongsId.equals(album.getId()))
-					{
-						MusicDirectory albumDirectory = musicService.getAlbum(album.getId(), "", false, SelectAlbumActivity.this, this);
-
-						for (MusicDirectory.Entry song : albumDirectory.getChildren())
-						{
-							if (!song.isVideo())
-							{
-								songs.add(song);
-							}
-						}
-					}
-				}
-			}
 		}.execute();
 	}
 
@@ -1048,7 +1073,7 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 		public LoadTask()
 		{
-			super(SelectAlbumActivity.this, true);
+			super(SelectAlbumActivity.this, !reloading);
 		}
 
 		protected abstract MusicDirectory load(MusicService service) throws Exception;
@@ -1091,6 +1116,9 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 
 			final int listSize = getIntent().getIntExtra(Constants.INTENT_EXTRA_NAME_ALBUM_LIST_SIZE, 0);
 
+			// Added again below if there are still songs to show
+			albumListView.removeHeaderView(header);
+
 			if (songCount > 0)
 			{
 				if (showHeader)
@@ -1180,11 +1208,13 @@ public class SelectAlbumActivity extends SubsonicTabActivity
 				shareButton.setVisible(shareButtonVisible);
 			}
 
+			int position = albumListView.getFirstVisiblePosition();
 			albumListView.setAdapter(new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), entries, true));
+			albumListView.setSelection(position);
 			licenseValid = result.getSecond();
 
 			boolean playAll = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_AUTOPLAY, false);
-			if (playAll && songCount > 0)
+			if (playAll && songCount > 0 && !reloading)
 			{
 				playAll(getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_SHUFFLE, false), false);
 			}
@@ -38,7 +38,9 @@ import com.handmark.pulltorefresh.library.PullToRefreshListView;
 import com.thejoshwa.ultrasonic.androidapp.R;
 import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
 import com.thejoshwa.ultrasonic.androidapp.domain.Indexes;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.domain.MusicFolder;
+import com.thejoshwa.ultrasonic.androidapp.service.CachedMusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.BackgroundTask;
@@ -61,6 +63,30 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 	private TextView folderName;
 	private List<MusicFolder> musicFolders;
 
+	private final CachedMusicService.RefreshListener refreshListener = new CachedMusicService.RefreshListener()
+	{
+		@Override
+		public void onDirectoryRefreshed(String id, MusicDirectory directory)
+		{
+		}
+
+		@Override
+		public void onIndexesRefreshed(Indexes indexes)
+		{
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (!getIsDestroyed())
+					{
+						load(false);
+					}
+				}
+			});
+		}
+	};
+
 	/**
 	 * Called when the activity is first created.
 	 */
@@ -112,7 +138,15 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 		menuDrawer.setActiveView(browseMenuItem);
 
 		musicFolders = null;
-		load();
+		MusicServiceFactory.addRefreshListener(refreshListener);
+		load(true);
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		MusicServiceFactory.removeRefreshListener(refreshListener);
+		super.onDestroy();
 	}
 
 	@Override
@@ -137,9 +171,9 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 		folderButton.showContextMenu();
 	}
 
-	private void load()
+	private void load(boolean showProgress)
 	{
-		BackgroundTask<Indexes> task = new TabActivityBackgroundTask<Indexes>(this, true)
+		BackgroundTask<Indexes> task = new TabActivityBackgroundTask<Indexes>(this, showProgress)
 		{
 			@Override
 			protected Indexes doInBackground() throws Throwable
@@ -168,7 +202,11 @@ public class SelectArtistActivity extends SubsonicTabActivity implements Adapter
 					List<Artist> artists = new ArrayList<Artist>(result.getShortcuts().size() + result.getArtists().size());
 					artists.addAll(result.getShortcuts());
 					artists.addAll(result.getArtists());
+
+					// Keep the scroll position when the list is reloaded after a background refresh
+					int position = artistListView.getFirstVisiblePosition();
 					artistListView.setAdapter(new ArtistAdapter(SelectArtistActivity.this, artists));
+					artistListView.setSelection(position);
 				}
 
 				// Display selected music folder
@@ -73,6 +73,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 	private ListPreference cacheSize;
 	private EditTextPreference cacheLocation;
 	private ListPreference preloadCount;
+	private ListPreference parallelDownloads;
+	private ListPreference downloadConnections;
 	private ListPreference bufferLength;
 	private ListPreference incrementTime;
 	private ListPreference networkTimeout;
@@ -90,6 +92,7 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 	private CheckBoxPreference sendBluetoothAlbumArt;
 	private ListPreference viewRefresh;
 	private ListPreference imageLoaderConcurrency;
+	private ListPreference directoryConcurrency;
 	private EditTextPreference sharingDefaultDescription;
 	private EditTextPreference sharingDefaultGreeting;
 	private TimeSpanPreference sharingDefaultExpiration;
@@ -167,6 +170,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheSize = (ListPreference) findPreference(Constants.PREFERENCES_KEY_CACHE_SIZE);
 		cacheLocation = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_CACHE_LOCATION);
 		preloadCount = (ListPreference) findPreference(Constants.PREFERENCES_KEY_PRELOAD_COUNT);
+		parallelDownloads = (ListPreference) findPreference(Constants.PREFERENCES_KEY_PARALLEL_DOWNLOADS);
+		downloadConnections = (ListPreference) findPreference(Constants.PREFERENCES_KEY_DOWNLOAD_CONNECTIONS);
 		bufferLength = (ListPreference) findPreference(Constants.PREFERENCES_KEY_BUFFER_LENGTH);
 		incrementTime = (ListPreference) findPreference(Constants.PREFERENCES_KEY_INCREMENT_TIME);
 		networkTimeout = (ListPreference) findPreference(Constants.PREFERENCES_KEY_NETWORK_TIMEOUT);
@@ -184,6 +189,7 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		sendBluetoothNotifications = (CheckBoxPreference) findPreference(Constants.PREFERENCES_KEY_SEND_BLUETOOTH_NOTIFICATIONS);
 		viewRefresh = (ListPreference) findPreference(Constants.PREFERENCES_KEY_VIEW_REFRESH);
 		imageLoaderConcurrency = (ListPreference) findPreference(Constants.PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY);
+		directoryConcurrency = (ListPreference) findPreference(Constants.PREFERENCES_KEY_DIRECTORY_CONCURRENCY);
 		sharingDefaultDescription = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_DEFAULT_SHARE_DESCRIPTION);
 		sharingDefaultGreeting = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_DEFAULT_SHARE_GREETING);
 		sharingDefaultExpiration = (TimeSpanPreference) findPreference(Constants.PREFERENCES_KEY_DEFAULT_SHARE_EXPIRATION);
@@ -537,6 +543,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheSize.setSummary(cacheSize.getEntry());
 		cacheLocation.setSummary(cacheLocation.getText());
 		preloadCount.setSummary(preloadCount.getEntry());
+		parallelDownloads.setSummary(parallelDownloads.getEntry());
+		downloadConnections.setSummary(downloadConnections.getEntry());
 		bufferLength.setSummary(bufferLength.getEntry());
 		incrementTime.setSummary(incrementTime.getEntry());
 		networkTimeout.setSummary(networkTimeout.getEntry());
@@ -550,6 +558,7 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		directoryCacheTime.setSummary(directoryCacheTime.getEntry());
 		viewRefresh.setSummary(viewRefresh.getEntry());
 		imageLoaderConcurrency.setSummary(imageLoaderConcurrency.getEntry());
+		directoryConcurrency.setSummary(directoryConcurrency.getEntry());
 		sharingDefaultExpiration.setSummary(sharingDefaultExpiration.getText());
 		sharingDefaultDescription.setSummary(sharingDefaultDescription.getText());
 		sharingDefaultGreeting.setSummary(sharingDefaultGreeting.getText());
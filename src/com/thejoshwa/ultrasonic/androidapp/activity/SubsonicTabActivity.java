@@ -64,9 +64,11 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.BackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.DirectoryWalker;
 import com.thejoshwa.ultrasonic.androidapp.util.EntryByDiscAndTrackComparator;
 import com.thejoshwa.ultrasonic.androidapp.util.ImageLoader;
 import com.thejoshwa.ultrasonic.androidapp.util.ModalBackgroundTask;
+import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 import com.thejoshwa.ultrasonic.androidapp.util.ShareDetails;
 import com.thejoshwa.ultrasonic.androidapp.util.SilentBackgroundTask;
 import com.thejoshwa.ultrasonic.androidapp.util.TabActivityBackgroundTask;
@@ -81,9 +83,7 @@ import net.simonvt.menudrawer.Position;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -189,6 +189,11 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		applyTheme();
 		instance = this;
 
+		if (IMAGE_LOADER != null)
+		{
+			IMAGE_LOADER.resume(this);
+		}
+
 		Util.registerMediaButtonEventReceiver(this);
 
 		// Make sure to update theme
@@ -221,6 +226,18 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		return super.onOptionsItemSelected(item);
 	}
 
+	@Override
+	protected void onPause()
+	{
+		super.onPause();
+
+		// Don't spend bandwidth on images that can't be seen.
+		if (IMAGE_LOADER != null)
+		{
+			IMAGE_LOADER.pause(this);
+		}
+	}
+
 	@Override
 	protected void onDestroy()
 	{
@@ -1039,102 +1056,98 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 		{
 			private static final int MAX_SONGS = 500;
 
+			// Number of songs already handed to the download service while the rest were being loaded
+			private int streamed;
+
 			@Override
 			protected List<Entry> doInBackground() throws Throwable
 			{
-				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
-				List<Entry> songs = new LinkedList<Entry>();
+				final MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
+				final boolean useId3Tags = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this);
 				MusicDirectory root;
 
-				if (!Util.isOffline(SubsonicTabActivity.this) && isArtist && Util.getShouldUseId3Tags(SubsonicTabActivity.this))
+				if (useId3Tags && isArtist)
 				{
-					getSongsForArtist(id, songs);
+					root = musicService.getArtist(id, "", false, SubsonicTabActivity.this, this);
 				}
-				else
+				else if (isDirectory)
 				{
-					if (isDirectory)
-					{
-						root = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this) ? musicService.getAlbum(id, name, false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, SubsonicTabActivity.this, this);
-					}
-					else if (isShare)
-					{
-						root = new MusicDirectory();
+					root = useId3Tags ? musicService.getAlbum(id, name, false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, SubsonicTabActivity.this, this);
+				}
+				else if (isShare)
+				{
+					root = new MusicDirectory();
 
-						List<Share> shares = musicService.getShares(true, SubsonicTabActivity.this, this);
+					List<Share> shares = musicService.getShares(true, SubsonicTabActivity.this, this);
 
-						for (Share share : shares)
+					for (Share share : shares)
+					{
+						if (share.getId().equals(id))
 						{
-							if (share.getId().equals(id))
+							for (Entry entry : share.getEntries())
 							{
-								for (Entry entry : share.getEntries())
-								{
-									root.addChild(entry);
-								}
-
-								break;
+								root.addChild(entry);
 							}
+
+							break;
 						}
 					}
-					else
-					{
-						root = musicService.getPlaylist(id, name, SubsonicTabActivity.this, this);
-					}
-
-					getSongsRecursively(root, songs);
 				}
-
-				return songs;
-			}
-
-			private void getSongsRecursively(MusicDirectory parent, List<Entry> songs) throws Exception
-			{
-				if (songs.size() > MAX_SONGS)
+				else
 				{
-					return;
+					root = musicService.getPlaylist(id, name, SubsonicTabActivity.this, this);
 				}
 
-				for (Entry song : parent.getChildren(false, true))
+				final boolean playWhileLoading = autoplay && !append && !playNext && !shuffle && !background && !unpin && !Util.getShouldSortByDisc(SubsonicTabActivity.this);
+				final ProgressListener progressListener = this;
+
+				DirectoryWalker walker = new DirectoryWalker(Util.getDirectoryConcurrency(SubsonicTabActivity.this), MAX_SONGS)
 				{
-					if (!song.isVideo())
+					private boolean first = true;
+
+					@Override
+					protected MusicDirectory load(Entry directory) throws Exception
 					{
-						songs.add(song);
+						return useId3Tags ? musicService.getAlbum(directory.getId(), directory.getTitle(), false, SubsonicTabActivity.this, progressListener) : musicService.getMusicDirectory(directory.getId(), directory.getTitle(), false, SubsonicTabActivity.this, progressListener);
 					}
-				}
 
-				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
-
-				for (Entry dir : parent.getChildren(true, false))
-				{
-					MusicDirectory root;
-
-					root = !Util.isOffline(SubsonicTabActivity.this) && Util.getShouldUseId3Tags(SubsonicTabActivity.this) ? musicService.getAlbum(dir.getId(), dir.getTitle(), false, SubsonicTabActivity.this, this) : musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, SubsonicTabActivity.this, this);
+					@Override
+					protected void onSongs(List<Entry> songs)
+					{
+						if (playWhileLoading && first)
+						{
+							first = false;
+							startPlaying(songs);
+						}
+					}
+				};
 
-					getSongsRecursively(root, songs);
-				}
+				return walker.walk(root);
 			}
 
-			private void getSongsForArtist(String id, Collection<Entry> songs) throws Exception
+			/**
+			 * Starts playing the first songs found, instead of waiting for all of them to be loaded.
+			 */
+			private void startPlaying(final List<Entry> songs)
 			{
-				if (songs.size() > MAX_SONGS)
-				{
-					return;
-				}
-
-				MusicService musicService = MusicServiceFactory.getMusicService(SubsonicTabActivity.this);
-				MusicDirectory artist = musicService.getArtist(id, "", false, SubsonicTabActivity.this, this);
-
-				for (Entry album : artist.getChildren())
+				getHandler().post(new Runnable()
 				{
-					MusicDirectory albumDirectory = musicService.getAlbum(album.getId(), "", false, SubsonicTabActivity.this, this);
-
-					for (Entry song : albumDirectory.getChildren())
+					@Override
+					public void run()
 					{
-						if (!song.isVideo())
+						DownloadService downloadService = getDownloadService();
+
+						if (isCancelled() || downloadService == null)
 						{
-							songs.add(song);
+							return;
 						}
+
+						warnIfNetworkOrStorageUnavailable();
+						downloadService.clear();
+						downloadService.download(songs, save, true, false, false, false);
+						streamed = songs.size();
 					}
-				}
+				});
 			}
 
 			@Override
@@ -1146,7 +1159,18 @@ public class SubsonicTabActivity extends ResultActivity implements OnClickListen
 				}
 
 				DownloadService downloadService = getDownloadService();
-				if (!songs.isEmpty() && downloadService != null)
+
+				if (streamed > 0 && downloadService != null)
+				{
+					// The first songs are already playing, so only append the rest.
+					downloadService.download(songs.subList(streamed, songs.size()), save, false, false, false, false);
+
+					if (Util.getShouldTransitionOnPlaybackPreference(SubsonicTabActivity.this))
+					{
+						startActivityForResultWithoutTransition(SubsonicTabActivity.this, DownloadActivity.class);
+					}
+				}
+				else if (!songs.isEmpty() && downloadService != null)
 				{
 					if (!append && !playNext && !unpin && !background)
 					{
@@ -0,0 +1,181 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+/**
+ * Chooses the bit rate of each download from the measured download rate, never above the maximum bit rate
+ * setting or the bit rate of the song itself.
+ * <p/>
+ * The controller keeps a level on a ladder of bit rates the server can transcode to. It steps down as soon as the
+ * download rate can't keep up with the level, but only steps up one level at a time once the rate has been high
+ * enough for {@link #STEP_UP_DELAY} milliseconds, so that a short burst doesn't make it swing back and forth. A
+ * song that won't be played for a while may get one level more than the link sustains, since its download has
+ * that much longer to finish.
+ */
+public class BitRateController
+{
+	private static final String TAG = BitRateController.class.getSimpleName();
+
+	// Bit rates the server can transcode to, as offered in the settings. The last level means no limit.
+	private static final int[] LEVELS = {32, 64, 80, 96, 112, 128, 160, 192, 256, 320, Integer.MAX_VALUE};
+
+	// The download rate must be this many times the bit rate to stay at a level, and the next level up must fit
+	// this many times to move up to it.
+	private static final double STAY_HEADROOM = 1.25;
+	private static final double STEP_UP_HEADROOM = 2.0;
+	private static final long STEP_UP_DELAY = 30000L;
+
+	private final Context context;
+	private final ThroughputEstimator estimator;
+	private int level = LEVELS.length - 1;
+	private long stepUpSince = -1;
+
+	public BitRateController(Context context, ThroughputEstimator estimator)
+	{
+		this.context = context;
+		this.estimator = estimator;
+	}
+
+	/**
+	 * Returns the bit rate to download the song at, 0 meaning the original.
+	 *
+	 * @param secondsUntilNeeded How long until the song will be played, 0 if it is playing or not known.
+	 */
+	public synchronized int getMaxBitRate(DownloadFile downloadFile, double secondsUntilNeeded)
+	{
+		return getMaxBitRate(downloadFile, secondsUntilNeeded, true);
+	}
+
+	/**
+	 * Returns the bit rate the song would be downloaded at now, without counting the query as a measurement, so
+	 * that asking doesn't move the controller between levels.
+	 */
+	public synchronized int peekMaxBitRate(DownloadFile downloadFile)
+	{
+		return getMaxBitRate(downloadFile, 0, false);
+	}
+
+	private int getMaxBitRate(DownloadFile downloadFile, double secondsUntilNeeded, boolean update)
+	{
+		int limit = Util.getMaxBitRate(context);
+		double rate = estimator.getBytesPerSecond();
+
+		// Songs kept for offline use are downloaded the way the user set up.
+		if (rate <= 0 || downloadFile.shouldSave())
+		{
+			return limit;
+		}
+
+		MusicDirectory.Entry song = downloadFile.getSong();
+		int original = song.getBitRate() == null ? 0 : song.getBitRate();
+		int highest = limit > 0 ? (original > 0 ? Math.min(limit, original) : limit) : original;
+
+		if (highest <= 0)
+		{
+			return limit;
+		}
+
+		double kbps = rate * 8.0 / 1024.0;
+
+		if (update)
+		{
+			update(kbps, highest);
+		}
+
+		int bitRate = Math.min(LEVELS[level], highest);
+
+		// The download can also continue while the songs before it play.
+		Integer duration = song.getDuration();
+		if (level < LEVELS.length - 1 && duration != null && duration > 0 && secondsUntilNeeded > 0)
+		{
+			int next = Math.min(LEVELS[level + 1], highest);
+			double allowance = (secondsUntilNeeded + duration) / duration;
+
+			if (next * STAY_HEADROOM <= kbps * allowance)
+			{
+				bitRate = next;
+			}
+		}
+
+		if (bitRate >= highest)
+		{
+			return limit;
+		}
+
+		if (update)
+		{
+			Log.i(TAG, String.format("Downloading %s at %d kbps (%.0f kbps measured)", song, bitRate, kbps));
+		}
+
+		return bitRate;
+	}
+
+	private void update(double kbps, int highest)
+	{
+		if (Math.min(LEVELS[level], highest) * STAY_HEADROOM > kbps)
+		{
+			int lower = 0;
+
+			while (lower < level - 1 && LEVELS[lower + 1] * STAY_HEADROOM <= kbps)
+			{
+				lower++;
+			}
+
+			if (lower != level)
+			{
+				Log.i(TAG, String.format("Stepping down from %s to %d kbps at %.0f kbps", getName(level), LEVELS[lower], kbps));
+				level = lower;
+			}
+
+			stepUpSince = -1;
+			return;
+		}
+
+		if (level == LEVELS.length - 1 || Math.min(LEVELS[level + 1], highest) * STEP_UP_HEADROOM > kbps)
+		{
+			stepUpSince = -1;
+			return;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+
+		if (stepUpSince < 0)
+		{
+			stepUpSince = now;
+		}
+		else if (now - stepUpSince >= STEP_UP_DELAY)
+		{
+			Log.i(TAG, String.format("Stepping up from %d to %s at %.0f kbps", LEVELS[level], getName(level + 1), kbps));
+			level++;
+			stepUpSince = -1;
+		}
+	}
+
+	private static String getName(int level)
+	{
+		return LEVELS[level] == Integer.MAX_VALUE ? "unlimited" : String.format("%d kbps", LEVELS[level]);
+	}
+}
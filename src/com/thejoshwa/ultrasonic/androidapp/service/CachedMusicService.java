@@ -20,7 +20,9 @@ package com.thejoshwa.ultrasonic.androidapp.service;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
+import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
 import com.thejoshwa.ultrasonic.androidapp.domain.Bookmark;
 import com.thejoshwa.ultrasonic.androidapp.domain.ChatMessage;
 import com.thejoshwa.ultrasonic.androidapp.domain.Genre;
@@ -35,18 +37,24 @@ import com.thejoshwa.ultrasonic.androidapp.domain.SearchResult;
 import com.thejoshwa.ultrasonic.androidapp.domain.Share;
 import com.thejoshwa.ultrasonic.androidapp.domain.UserInfo;
 import com.thejoshwa.ultrasonic.androidapp.domain.Version;
+import com.thejoshwa.ultrasonic.androidapp.util.BoundedCache;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
-import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
+import com.thejoshwa.ultrasonic.androidapp.util.Pair;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+import com.thejoshwa.ultrasonic.androidapp.util.SingleFlight;
 import com.thejoshwa.ultrasonic.androidapp.util.TimeLimitedCache;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
-import org.apache.http.HttpResponse;
-
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -54,14 +62,32 @@ import java.util.concurrent.TimeUnit;
  */
 public class CachedMusicService implements MusicService
 {
+	private static final String TAG = CachedMusicService.class.getSimpleName();
 
 	private static final int MUSIC_DIR_CACHE_SIZE = 100;
 
+	// Directories are weighed by their number of children, allowing on average 50 children per cached directory.
+	private static final int MUSIC_DIR_CACHE_WEIGHT = MUSIC_DIR_CACHE_SIZE * 50;
+
+	// Directories persisted on disk are fresh for as long as the directory cache time. Once expired, they are
+	// shown while being revalidated until they are older than this, after which they are loaded from the server.
+	private static final long PERSISTED_DIRECTORY_MAX_AGE_MILLIS = 24L * 60L * 60L * 1000L;
+
+	private static final BoundedCache.Weigher<TimeLimitedCache<MusicDirectory>> MUSIC_DIR_WEIGHER = new BoundedCache.Weigher<TimeLimitedCache<MusicDirectory>>()
+	{
+		@Override
+		public int weigh(TimeLimitedCache<MusicDirectory> value)
+		{
+			MusicDirectory dir = value.get();
+			return dir == null ? 1 : dir.getChildren().size() + 1;
+		}
+	};
+
 	private final MusicService musicService;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedArtist;
-	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedAlbum;
-	private final LRUCache<String, TimeLimitedCache<UserInfo>> cachedUserInfo;
+	private final BoundedCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
+	private final BoundedCache<String, TimeLimitedCache<MusicDirectory>> cachedArtist;
+	private final BoundedCache<String, TimeLimitedCache<MusicDirectory>> cachedAlbum;
+	private final BoundedCache<String, TimeLimitedCache<UserInfo>> cachedUserInfo;
 	private final TimeLimitedCache<Boolean> cachedLicenseValid = new TimeLimitedCache<Boolean>(120, TimeUnit.SECONDS);
 	private final TimeLimitedCache<Indexes> cachedIndexes = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
 	private final TimeLimitedCache<Indexes> cachedArtists = new TimeLimitedCache<Indexes>(60 * 60, TimeUnit.SECONDS);
@@ -69,15 +95,41 @@ public class CachedMusicService implements MusicService
 	private final TimeLimitedCache<List<MusicFolder>> cachedMusicFolders = new TimeLimitedCache<List<MusicFolder>>(10 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<List<Genre>>(10 * 3600, TimeUnit.SECONDS);
 
+	private final SingleFlight<String, MusicDirectory> directoriesInFlight = new SingleFlight<String, MusicDirectory>();
+	private final SingleFlight<String, Indexes> indexesInFlight = new SingleFlight<String, Indexes>();
+	private final SingleFlight<String, List<MusicFolder>> musicFoldersInFlight = new SingleFlight<String, List<MusicFolder>>();
+	private final SingleFlight<String, Bitmap> imagesInFlight = new SingleFlight<String, Bitmap>();
+
+	private final RefreshNotifier<Indexes> indexesRefreshNotifier = new RefreshNotifier<Indexes>()
+	{
+		@Override
+		public void refreshed(Indexes previous, Indexes current)
+		{
+			if (!hasSameArtists(previous, current))
+			{
+				for (RefreshListener listener : refreshListeners)
+				{
+					listener.onIndexesRefreshed(current);
+				}
+			}
+		}
+	};
+
+	private final Executor revalidationExecutor = Executors.newSingleThreadExecutor();
+	private final Set<String> revalidating = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final List<RefreshListener> refreshListeners = new CopyOnWriteArrayList<RefreshListener>();
+
+	private MetadataCache metadataCache;
 	private String restUrl;
+	private String serverKey;
 
 	public CachedMusicService(MusicService musicService)
 	{
 		this.musicService = musicService;
-		cachedMusicDirectories = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedArtist = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedAlbum = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedUserInfo = new LRUCache<String, TimeLimitedCache<UserInfo>>(MUSIC_DIR_CACHE_SIZE);
+		cachedMusicDirectories = new BoundedCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_WEIGHT, MUSIC_DIR_WEIGHER);
+		cachedArtist = new BoundedCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_WEIGHT, MUSIC_DIR_WEIGHER);
+		cachedAlbum = new BoundedCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_WEIGHT, MUSIC_DIR_WEIGHER);
+		cachedUserInfo = new BoundedCache<String, TimeLimitedCache<UserInfo>>(MUSIC_DIR_CACHE_SIZE);
 	}
 
 	@Override
@@ -101,7 +153,7 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public List<MusicFolder> getMusicFolders(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public List<MusicFolder> getMusicFolders(final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -111,14 +163,20 @@ public class CachedMusicService implements MusicService
 		List<MusicFolder> result = cachedMusicFolders.get();
 		if (result == null)
 		{
-			result = musicService.getMusicFolders(refresh, context, progressListener);
-			cachedMusicFolders.set(result);
+			result = get(musicFoldersInFlight, getInFlightKey(context, "getMusicFolders", null), cachedMusicFolders, refresh, context, progressListener, new Loader<List<MusicFolder>>()
+			{
+				@Override
+				public List<MusicFolder> load(boolean refresh, ProgressListener progressListener) throws Exception
+				{
+					return musicService.getMusicFolders(refresh, context, progressListener);
+				}
+			}, null);
 		}
 		return result;
 	}
 
 	@Override
-	public Indexes getIndexes(String musicFolderId, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public Indexes getIndexes(final String musicFolderId, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -130,14 +188,20 @@ public class CachedMusicService implements MusicService
 		Indexes result = cachedIndexes.get();
 		if (result == null)
 		{
-			result = musicService.getIndexes(musicFolderId, refresh, context, progressListener);
-			cachedIndexes.set(result);
+			result = get(indexesInFlight, getInFlightKey(context, "getIndexes", musicFolderId), cachedIndexes, refresh, context, progressListener, new Loader<Indexes>()
+			{
+				@Override
+				public Indexes load(boolean refresh, ProgressListener progressListener) throws Exception
+				{
+					return musicService.getIndexes(musicFolderId, refresh, context, progressListener);
+				}
+			}, indexesRefreshNotifier);
 		}
 		return result;
 	}
 
 	@Override
-	public Indexes getArtists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public Indexes getArtists(final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -147,60 +211,282 @@ public class CachedMusicService implements MusicService
 		Indexes result = cachedArtists.get();
 		if (result == null)
 		{
-			result = musicService.getArtists(refresh, context, progressListener);
-			cachedArtists.set(result);
+			result = get(indexesInFlight, getInFlightKey(context, "getArtists", null), cachedArtists, refresh, context, progressListener, new Loader<Indexes>()
+			{
+				@Override
+				public Indexes load(boolean refresh, ProgressListener progressListener) throws Exception
+				{
+					return musicService.getArtists(refresh, context, progressListener);
+				}
+			}, indexesRefreshNotifier);
 		}
 		return result;
 	}
 
-	@Override
-	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	/**
+	 * Loads a value into a time limited cache. Concurrent loads of the same value share a single request
+	 * to the underlying service. If the cache has expired but still holds a value, and serving stale data
+	 * is enabled, the expired value is returned at once and refreshed in the background.
+	 */
+	private <T> T get(final SingleFlight<String, T> flights, final String key, final TimeLimitedCache<T> cache, boolean refresh, Context context, ProgressListener progressListener, final Loader<T> loader, final RefreshNotifier<T> notifier) throws Exception
 	{
-		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(id);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
+		final T stale = refresh || !Util.getShouldServeStaleData(context) ? null : cache.getStale();
 
-		if (dir == null)
+		if (stale != null)
 		{
-			dir = musicService.getMusicDirectory(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(id, cache);
+			revalidate(new Revalidation(key)
+			{
+				@Override
+				protected void refresh() throws Exception
+				{
+					T fresh = load(flights, key, cache, loader, true, null);
+
+					if (notifier != null)
+					{
+						notifier.refreshed(stale, fresh);
+					}
+				}
+			});
+
+			return stale;
 		}
-		return dir;
+
+		return load(flights, key, cache, loader, refresh, progressListener);
+	}
+
+	private static <T> T load(SingleFlight<String, T> flights, String key, final TimeLimitedCache<T> cache, final Loader<T> loader, final boolean refresh, final ProgressListener progressListener) throws Exception
+	{
+		return flights.execute(getInFlightKey(key, refresh), new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				T result = loader.load(refresh, progressListener);
+				cache.set(result);
+				return result;
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getArtist(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getMusicDirectory(final String id, final String name, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedArtist.get(id);
-		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+		return getDirectory(cachedMusicDirectories, "getMusicDirectory", MetadataCache.TYPE_MUSIC_DIRECTORY, id, refresh, context, progressListener, new Loader<MusicDirectory>()
 		{
-			dir = musicService.getArtist(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedArtist.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getMusicDirectory(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getAlbum(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getArtist(final String id, final String name, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedAlbum.get(id);
+		return getDirectory(cachedArtist, "getArtist", MetadataCache.TYPE_ARTIST, id, refresh, context, progressListener, new Loader<MusicDirectory>()
+		{
+			@Override
+			public MusicDirectory load(boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getArtist(id, name, refresh, context, progressListener);
+			}
+		});
+	}
+
+	@Override
+	public MusicDirectory getAlbum(final String id, final String name, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
+	{
+		checkSettingsChanged(context);
+		return getDirectory(cachedAlbum, "getAlbum", MetadataCache.TYPE_ALBUM, id, refresh, context, progressListener, new Loader<MusicDirectory>()
+		{
+			@Override
+			public MusicDirectory load(boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getAlbum(id, name, refresh, context, progressListener);
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached directory for the given id, or loads it. Directories with a persistent type are
+	 * also looked up in, and written to, the on-disk metadata cache. Concurrent loads of the same directory
+	 * share a single request to the underlying service.
+	 * <p/>
+	 * If serving stale data is enabled, an expired directory, or one persisted longer ago than the directory
+	 * cache time, is returned at once and refreshed in the background. Listeners are notified if it changed.
+	 */
+	private MusicDirectory getDirectory(final BoundedCache<String, TimeLimitedCache<MusicDirectory>> directoryCache, final String method, final String persistentType, final String id, boolean refresh, final Context context, ProgressListener progressListener, final Loader<MusicDirectory> loader) throws Exception
+	{
+		TimeLimitedCache<MusicDirectory> cache = refresh ? null : directoryCache.get(id);
 		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+
+		if (dir != null)
+		{
+			return dir;
+		}
+
+		if (refresh)
+		{
+			return loadDirectory(directoryCache, method, persistentType, id, context, loader, true, progressListener);
+		}
+
+		boolean serveStale = Util.getShouldServeStaleData(context);
+		MusicDirectory stale = serveStale && cache != null ? cache.getStale() : null;
+
+		if (stale == null && persistentType != null)
+		{
+			Pair<MusicDirectory, Long> persisted = getMetadataCache(context).get(serverKey, persistentType, id);
+
+			if (persisted != null)
+			{
+				long age = System.currentTimeMillis() - persisted.getSecond();
+
+				if (age < Util.getDirectoryCacheTime(context) * 1000L)
+				{
+					dir = persisted.getFirst();
+					putDirectory(directoryCache, id, dir, context);
+				}
+				else if (serveStale && age < PERSISTED_DIRECTORY_MAX_AGE_MILLIS)
+				{
+					stale = persisted.getFirst();
+				}
+			}
+		}
+
+		if (stale != null)
+		{
+			final MusicDirectory previous = stale;
+
+			revalidate(new Revalidation(getInFlightKey(context, method, id))
+			{
+				@Override
+				protected void refresh() throws Exception
+				{
+					MusicDirectory fresh = loadDirectory(directoryCache, method, persistentType, id, context, loader, true, null);
+
+					if (!hasSameChildren(previous, fresh))
+					{
+						for (RefreshListener listener : refreshListeners)
+						{
+							listener.onDirectoryRefreshed(id, fresh);
+						}
+					}
+				}
+			});
+
+			return stale;
+		}
+
+		return dir != null ? dir : loadDirectory(directoryCache, method, persistentType, id, context, loader, false, progressListener);
+	}
+
+	private MusicDirectory loadDirectory(final BoundedCache<String, TimeLimitedCache<MusicDirectory>> directoryCache, String method, final String persistentType, final String id, final Context context, final Loader<MusicDirectory> loader, final boolean refresh, final ProgressListener progressListener) throws Exception
+	{
+		final String server = serverKey;
+
+		return directoriesInFlight.execute(getInFlightKey(getInFlightKey(context, method, id), refresh), new Callable<MusicDirectory>()
+		{
+			@Override
+			public MusicDirectory call() throws Exception
+			{
+				MusicDirectory result = loader.load(refresh, progressListener);
+				putDirectory(directoryCache, id, result, context);
+
+				if (persistentType != null)
+				{
+					getMetadataCache(context).put(server, persistentType, id, result);
+				}
+
+				return result;
+			}
+		});
+	}
+
+	private void revalidate(Revalidation revalidation)
+	{
+		if (revalidating.add(revalidation.key))
+		{
+			Log.d(TAG, String.format("Serving stale %s, refreshing in the background", revalidation.key));
+			revalidationExecutor.execute(revalidation);
+		}
+	}
+
+	private static boolean hasSameChildren(MusicDirectory previous, MusicDirectory current)
+	{
+		// Entries are equal if their ids are, so this detects added, removed and reordered children.
+		return previous.getChildren().equals(current.getChildren());
+	}
+
+	private static boolean hasSameArtists(Indexes previous, Indexes current)
+	{
+		if (previous.getLastModified() != 0 && previous.getLastModified() == current.getLastModified())
+		{
+			return true;
+		}
+
+		return hasSameIds(previous.getShortcuts(), current.getShortcuts()) && hasSameIds(previous.getArtists(), current.getArtists());
+	}
+
+	private static boolean hasSameIds(List<Artist> previous, List<Artist> current)
+	{
+		if (previous.size() != current.size())
+		{
+			return false;
+		}
+
+		for (int i = 0; i < previous.size(); i++)
 		{
-			dir = musicService.getAlbum(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedAlbum.put(id, cache);
+			if (!Util.equals(previous.get(i).getId(), current.get(i).getId()))
+			{
+				return false;
+			}
 		}
-		return dir;
+
+		return true;
+	}
+
+	public void addRefreshListener(RefreshListener listener)
+	{
+		refreshListeners.add(listener);
+	}
+
+	public void removeRefreshListener(RefreshListener listener)
+	{
+		refreshListeners.remove(listener);
+	}
+
+	private static void putDirectory(BoundedCache<String, TimeLimitedCache<MusicDirectory>> directoryCache, String id, MusicDirectory dir, Context context)
+	{
+		TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+		cache.set(dir);
+		directoryCache.put(id, cache);
+	}
+
+	private synchronized MetadataCache getMetadataCache(Context context)
+	{
+		if (metadataCache == null)
+		{
+			metadataCache = new MetadataCache(context);
+		}
+
+		return metadataCache;
+	}
+
+	private static String getInFlightKey(Context context, String method, String id)
+	{
+		return String.format("%d:%s:%s", Util.getActiveServer(context), method, id);
+	}
+
+	/**
+	 * Refreshing loads get a flight of their own, as a load that isn't refreshing may be answered from a cache
+	 * of the underlying service.
+	 */
+	private static String getInFlightKey(String key, boolean refresh)
+	{
+		return refresh ? key + ":refresh" : key;
 	}
 
 	@Override
@@ -302,17 +588,36 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Bitmap getCoverArt(Context context, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception
+	public Bitmap getCoverArt(final Context context, final MusicDirectory.Entry entry, final int size, final boolean saveToFile, final boolean highQuality, final ProgressListener progressListener) throws Exception
 	{
-		return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		if (entry == null || entry.getCoverArt() == null)
+		{
+			return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		}
+
+		// Entries for the same album share the cover art, so it is loaded once however many of them ask at once.
+		return imagesInFlight.execute(getInFlightKey(context, "getCoverArt", String.format("%s:%d", entry.getCoverArt(), size)), new Callable<Bitmap>()
+		{
+			@Override
+			public Bitmap call() throws Exception
+			{
+				return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
+	public HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
 	{
 		return musicService.getDownloadInputStream(context, song, offset, maxBitrate, task);
 	}
 
+	@Override
+	public HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
+	{
+		return musicService.getDownloadInputStream(context, song, offset, length, maxBitrate, task);
+	}
+
 	@Override
 	public Version getLocalVersion(Context context) throws Exception
 	{
@@ -388,6 +693,7 @@ public class CachedMusicService implements MusicService
 			cachedArtist.clear();
 			cachedUserInfo.clear();
 			restUrl = newUrl;
+			serverKey = Util.md5Hex(newUrl);
 		}
 	}
 
@@ -471,22 +777,17 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public MusicDirectory getVideos(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getVideos(final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(Constants.INTENT_EXTRA_NAME_VIDEOS);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
-
-		if (dir == null)
+		return getDirectory(cachedMusicDirectories, "getVideos", null, Constants.INTENT_EXTRA_NAME_VIDEOS, refresh, context, progressListener, new Loader<MusicDirectory>()
 		{
-			dir = musicService.getVideos(refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(Constants.INTENT_EXTRA_NAME_VIDEOS, cache);
-		}
-
-		return dir;
+			@Override
+			public MusicDirectory load(boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getVideos(refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
@@ -528,8 +829,70 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Bitmap getAvatar(Context context, String username, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception
+	public Bitmap getAvatar(final Context context, final String username, final int size, final boolean saveToFile, final boolean highQuality, final ProgressListener progressListener) throws Exception
+	{
+		if (username == null)
+		{
+			return null;
+		}
+
+		return imagesInFlight.execute(getInFlightKey(context, "getAvatar", String.format("%s:%d", username, size)), new Callable<Bitmap>()
+		{
+			@Override
+			public Bitmap call() throws Exception
+			{
+				return musicService.getAvatar(context, username, size, saveToFile, highQuality, progressListener);
+			}
+		});
+	}
+
+	/**
+	 * Notified when data that was served stale has been refreshed in the background and turned out to
+	 * have changed. Called on a background thread.
+	 */
+	public interface RefreshListener
 	{
-		return musicService.getAvatar(context, username, size, saveToFile, highQuality, progressListener);
+		void onDirectoryRefreshed(String id, MusicDirectory directory);
+
+		void onIndexesRefreshed(Indexes indexes);
+	}
+
+	private interface Loader<T>
+	{
+		T load(boolean refresh, ProgressListener progressListener) throws Exception;
+	}
+
+	private interface RefreshNotifier<T>
+	{
+		void refreshed(T previous, T current);
+	}
+
+	private abstract class Revalidation implements Runnable
+	{
+		private final String key;
+
+		protected Revalidation(String key)
+		{
+			this.key = key;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				refresh();
+			}
+			catch (Exception x)
+			{
+				Log.w(TAG, String.format("Failed to refresh %s in the background", key), x);
+			}
+			finally
+			{
+				revalidating.remove(key);
+			}
+		}
+
+		protected abstract void refresh() throws Exception;
 	}
 }
@@ -0,0 +1,127 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Stops requests to a server that keeps failing, so that they fail at once instead of each waiting for its own
+ * timeouts and retries.
+ * <p/>
+ * After {@link #FAILURE_THRESHOLD} failures in a row the breaker opens, and no requests are let through for a
+ * while. After that, one request is let through to test the server. If it succeeds the breaker closes again,
+ * otherwise it stays open for twice as long as the last time.
+ */
+public class CircuitBreaker
+{
+	private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+	private static final int FAILURE_THRESHOLD = 5;
+	private static final long MIN_OPEN_MILLIS = 15000L;
+	private static final long MAX_OPEN_MILLIS = 120000L;
+
+	private final String name;
+	private int failures;
+	private boolean open;
+	private boolean testing;
+	private long openMillis = MIN_OPEN_MILLIS;
+	private long openUntil;
+
+	public CircuitBreaker(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Returns whether a request may be sent. If this lets through the request that tests the server, its outcome
+	 * must be reported with {@link #onSuccess}, {@link #onFailure} or {@link #onAbandoned}.
+	 */
+	public synchronized boolean allowRequest()
+	{
+		if (!open)
+		{
+			return true;
+		}
+
+		if (testing || SystemClock.elapsedRealtime() < openUntil)
+		{
+			return false;
+		}
+
+		Log.i(TAG, String.format("Testing %s", name));
+		testing = true;
+		return true;
+	}
+
+	public synchronized void onSuccess()
+	{
+		if (open)
+		{
+			Log.i(TAG, String.format("%s is responding again", name));
+		}
+
+		failures = 0;
+		open = false;
+		testing = false;
+		openMillis = MIN_OPEN_MILLIS;
+	}
+
+	public synchronized void onFailure()
+	{
+		if (testing)
+		{
+			testing = false;
+			openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+			trip();
+		}
+		else if (!open && ++failures >= FAILURE_THRESHOLD)
+		{
+			trip();
+		}
+	}
+
+	/**
+	 * Records that a request ended without showing whether the server works, such as when it was cancelled.
+	 */
+	public synchronized void onAbandoned()
+	{
+		testing = false;
+	}
+
+	public synchronized boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * Returns how many milliseconds are left until a request is let through again.
+	 */
+	public synchronized long getRetryAfter()
+	{
+		return open ? Math.max(0, openUntil - SystemClock.elapsedRealtime()) : 0;
+	}
+
+	private void trip()
+	{
+		Log.w(TAG, String.format("%s is not responding, failing requests for %d s", name, openMillis / 1000));
+		open = true;
+		openUntil = SystemClock.elapsedRealtime() + openMillis;
+	}
+}
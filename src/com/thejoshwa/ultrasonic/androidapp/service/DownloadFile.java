@@ -29,16 +29,20 @@ import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
-import org.apache.http.Header;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static android.content.Context.POWER_SERVICE;
 import static android.os.PowerManager.ON_AFTER_RELEASE;
@@ -52,6 +56,10 @@ public class DownloadFile
 {
 
 	private static final String TAG = DownloadFile.class.getSimpleName();
+
+	// Don't split downloads into segments smaller than this.
+	private static final long MIN_SEGMENT_SIZE = 1024L * 1024L;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-\\d+/(\\d+|\\*)");
 	private final Context context;
 	private final MusicDirectory.Entry song;
 	private final File partialFile;
@@ -62,11 +70,13 @@ public class DownloadFile
 	private CancellableTask downloadTask;
 	private final boolean save;
 	private boolean failed;
-	private int bitRate;
+	// The bit rate of the stream in the partial file. Only written by the download task.
+	private volatile int bitRate;
 	private volatile boolean isPlaying;
 	private volatile boolean saveWhenDone;
 	private volatile boolean completeWhenDone;
-	private Integer contentLength;
+	private volatile Integer contentLength;
+	private final Object progressMonitor = new Object();
 
 	public DownloadFile(Context context, MusicDirectory.Entry song, boolean save)
 	{
@@ -92,36 +102,101 @@ public class DownloadFile
 	 */
 	public int getBitRate()
 	{
-		if (!partialFile.exists())
+		int effective = partialFile.exists() ? bitRate : peekMaxBitRate();
+
+		if (effective > 0)
 		{
-			bitRate = Util.getMaxBitRate(context);
+			return effective;
 		}
 
-		if (bitRate > 0)
+		return song.getBitRate() == null ? 160 : song.getBitRate();
+	}
+
+	/**
+	 * Returns the bit rate a new download would start at, without affecting the choice of later downloads.
+	 */
+	private int peekMaxBitRate()
+	{
+		DownloadService downloadService = DownloadServiceImpl.getInstance();
+
+		if (downloadService instanceof DownloadServiceImpl)
 		{
-			return bitRate;
+			return ((DownloadServiceImpl) downloadService).peekMaxBitRate(this);
 		}
 
-		return song.getBitRate() == null ? 160 : song.getBitRate();
+		return Util.getMaxBitRate(context);
+	}
+
+	/**
+	 * Returns the bit rate to start a new download at.
+	 */
+	private int getMaxBitRate()
+	{
+		DownloadService downloadService = DownloadServiceImpl.getInstance();
+
+		if (downloadService instanceof DownloadServiceImpl)
+		{
+			return ((DownloadServiceImpl) downloadService).getMaxBitRate(this);
+		}
+
+		return Util.getMaxBitRate(context);
 	}
 
+	/**
+	 * Returns the total length of the song in bytes, or null if the server hasn't said.
+	 */
 	public Integer getContentLength()
 	{
 		return contentLength;
 	}
 
-	public synchronized void download()
+	/**
+	 * Waits until the partial file is longer than the given length, the download is done or has failed, or the
+	 * timeout expires.
+	 */
+	public void waitForData(long length, long timeoutMillis) throws InterruptedException
 	{
-		FileUtil.createDirectoryForParent(saveFile);
-		failed = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
 
-		if (!partialFile.exists())
+		synchronized (progressMonitor)
 		{
-			bitRate = Util.getMaxBitRate(context);
+			while (partialFile.length() <= length && !isWorkDone() && !isFailed())
+			{
+				long remaining = deadline - System.currentTimeMillis();
+
+				if (remaining <= 0)
+				{
+					return;
+				}
+
+				progressMonitor.wait(remaining);
+			}
 		}
+	}
+
+	private void notifyProgress()
+	{
+		synchronized (progressMonitor)
+		{
+			progressMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Starts downloading the song on the given executor. The download resumes from the partial file, if any.
+	 */
+	public void download(Executor executor)
+	{
+		// Asks the download service, so must not hold the lock of this song.
+		int maxBitRate = getMaxBitRate();
 
-		downloadTask = new DownloadTask();
-		downloadTask.start();
+		synchronized (this)
+		{
+			FileUtil.createDirectoryForParent(saveFile);
+			failed = false;
+			downloadTask = new DownloadTask(maxBitRate);
+			downloadTask.start(executor);
+		}
 	}
 
 	public synchronized void cancelDownload()
@@ -191,9 +266,11 @@ public class DownloadFile
 	{
 		cancelDownload();
 		Util.delete(partialFile);
+		Util.delete(getJournalFile());
 		Util.delete(completeFile);
 		Util.delete(saveFile);
 		mediaStoreService.deleteFromMediaStore(this);
+		DownloadStateIndex.update(this);
 	}
 
 	public void unpin()
@@ -201,6 +278,7 @@ public class DownloadFile
 		if (saveFile.exists())
 		{
 			saveFile.renameTo(completeFile);
+			DownloadStateIndex.update(this);
 		}
 	}
 
@@ -211,6 +289,7 @@ public class DownloadFile
 		if (completeFile.exists() || saveFile.exists())
 		{
 			ok = Util.delete(partialFile);
+			Util.delete(getJournalFile());
 		}
 
 		if (saveFile.exists())
@@ -218,6 +297,7 @@ public class DownloadFile
 			ok &= Util.delete(completeFile);
 		}
 
+		DownloadStateIndex.update(this);
 		return ok;
 	}
 
@@ -278,8 +358,11 @@ public class DownloadFile
 					Util.renameFile(partialFile, completeFile);
 				}
 
+				Util.delete(getJournalFile());
 				completeWhenDone = false;
 			}
+
+			DownloadStateIndex.update(this);
 		}
 		catch (IOException ex)
 		{
@@ -297,13 +380,21 @@ public class DownloadFile
 
 	private class DownloadTask extends CancellableTask
 	{
+		// The bit rate of the stream being downloaded, as recorded in the journal. Every request of the download
+		// asks for this one, so that the bytes appended to the partial file always match those before them.
+		private int streamBitRate;
+
+		public DownloadTask(int startBitRate)
+		{
+			streamBitRate = startBitRate;
+		}
+
 		@Override
 		public void execute()
 		{
-			InputStream in = null;
-			FileOutputStream out = null;
 			PowerManager.WakeLock wakeLock = null;
 			WifiManager.WifiLock wifiLock = null;
+			DownloadProgressBus.State state = DownloadProgressBus.State.COMPLETED;
 
 			try
 			{
@@ -344,67 +435,63 @@ public class DownloadFile
 				}
 
 				MusicService musicService = MusicServiceFactory.getMusicService(context);
+				DownloadProgressBus.publishState(DownloadFile.this, DownloadProgressBus.State.STARTED);
 
-				// Some devices seem to throw error on partial file which doesn't exist
-				boolean compare;
-
-				Integer duration = song.getDuration();
-				long fileLength = 0;
+				DownloadJournal journal = new DownloadJournal(getJournalFile());
 
-				if (!partialFile.exists())
+				if (partialFile.length() > 0 && !journal.resume(partialFile, song))
 				{
-					fileLength = partialFile.length();
+					Log.i(TAG, String.format("Partial file of %s can't be resumed, restarting download", song));
+					Util.delete(partialFile);
+					streamBitRate = getMaxBitRate();
 				}
 
-				try
+				if (partialFile.length() > 0)
 				{
-					compare = (bitRate == 0) || (duration == null || duration == 0) || (fileLength == 0);
-					//(bitRate * song.getDuration() * 1000 / 8) > partialFile.length();
+					// Continue the stream with the same bit rate as the bytes already on disk.
+					streamBitRate = journal.getBitRate();
 				}
-				catch (Exception e)
+				else
 				{
-					compare = true;
+					journal.reset(song, streamBitRate);
 				}
 
-				if (compare)
-				{
-					// Attempt partial HTTP GET, appending to the file if it exists.
-					HttpResponse response = musicService.getDownloadInputStream(context, song, partialFile.length(), bitRate, DownloadTask.this);
-					Header contentLengthHeader = response.getFirstHeader("Content-Length");
-
-					if (contentLengthHeader != null)
-					{
-						String contentLengthString = contentLengthHeader.getValue();
+				bitRate = streamBitRate;
 
-						if (contentLengthString != null)
-						{
-							Log.i(TAG, "Content Length: " + contentLengthString);
-							contentLength = Integer.parseInt(contentLengthString);
-						}
-					}
+				setContentLength(journal);
 
-					in = response.getEntity().getContent();
-					boolean partial = response.getStatusLine().getStatusCode() == HttpStatus.SC_PARTIAL_CONTENT;
+				if (partialFile.length() > 0 && partialFile.length() == journal.getContentLength())
+				{
+					Log.i(TAG, String.format("%s already downloaded", partialFile));
+				}
+				else if (!download(musicService, journal))
+				{
+					Log.i(TAG, String.format("%s changed on the server, restarting download", song));
+					Util.delete(partialFile);
+					streamBitRate = getMaxBitRate();
+					journal.reset(song, streamBitRate);
+					bitRate = streamBitRate;
 
-					if (partial)
+					if (!download(musicService, journal))
 					{
-						Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", partialFile.length()));
+						throw new IOException(String.format("Server returned inconsistent data for %s", song));
 					}
+				}
 
-					out = new FileOutputStream(partialFile, partial);
-					long n = copy(in, out);
-					Log.i(TAG, String.format("Downloaded %d bytes to %s", n, partialFile));
-					out.flush();
-					out.close();
+				if (isCancelled())
+				{
+					throw new Exception(String.format("Download of '%s' was cancelled", song));
+				}
 
-					if (isCancelled())
-					{
-						throw new Exception(String.format("Download of '%s' was cancelled", song));
-					}
+				long expectedLength = journal.getContentLength();
 
-					downloadAndSaveCoverArt(musicService);
+				if (expectedLength >= 0 && partialFile.length() != expectedLength)
+				{
+					throw new IOException(String.format("Downloaded %d of %d bytes of %s", partialFile.length(), expectedLength, song));
 				}
 
+				downloadAndSaveCoverArt(musicService);
+
 				if (isPlaying)
 				{
 					completeWhenDone = true;
@@ -430,25 +517,32 @@ public class DownloadFile
 							Util.scanMedia(context, completeFile);
 						}
 					}
+
+					Util.delete(getJournalFile());
 				}
 			}
 			catch (Exception x)
 			{
-				Util.close(out);
 				Util.delete(completeFile);
 				Util.delete(saveFile);
 
-				if (!isCancelled())
+				if (isCancelled())
+				{
+					state = DownloadProgressBus.State.CANCELLED;
+				}
+				else
 				{
 					failed = true;
+					state = DownloadProgressBus.State.FAILED;
 					Log.w(TAG, String.format("Failed to download '%s'.", song), x);
 				}
-
 			}
 			finally
 			{
-				Util.close(in);
-				Util.close(out);
+				// Wake up anyone waiting for data, the download has stopped.
+				notifyProgress();
+				DownloadProgressBus.publishState(DownloadFile.this, state);
+
 				if (wakeLock != null)
 				{
 					wakeLock.release();
@@ -474,49 +568,240 @@ public class DownloadFile
 			return String.format("DownloadTask (%s)", song);
 		}
 
-		private void downloadAndSaveCoverArt(MusicService musicService) throws Exception
+		/**
+		 * Downloads the rest of the song to the partial file.
+		 *
+		 * @return False if the server sent a different version of the song than the one in the partial file.
+		 */
+		private boolean download(MusicService musicService, DownloadJournal journal) throws Exception
 		{
+			InputStream in = null;
+			OutputStream out = null;
+
 			try
 			{
-				if (song.getCoverArt() != null)
+				long offset = partialFile.length();
+				int segments = getSegmentCount(offset);
+
+				// In segmented mode only the first segment is requested here, the others are started once
+				// the server has shown that it honours ranges.
+				long firstSegmentLength = segments > 1 ? (song.getSize() - offset) / segments : 0;
+
+				// Attempt partial HTTP GET, appending to the file if it exists.
+				HttpTransport.Response response = musicService.getDownloadInputStream(context, song, offset, firstSegmentLength, streamBitRate, DownloadTask.this);
+				String contentLength = response.getHeader("Content-Length");
+				long responseLength = -1;
+
+				if (contentLength != null)
 				{
-					int size = Util.getMinDisplayMetric(context);
-					musicService.getCoverArt(context, song, size, true, true, null);
+					Log.i(TAG, "Content Length: " + contentLength);
+					responseLength = Long.parseLong(contentLength);
+				}
+
+				int status = response.getStatusCode();
+
+				if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL)
+				{
+					response.abort();
+					throw new IOException(String.format("Server returned %s for %s", response.getStatusLine(), song));
+				}
+
+				in = response.getContent();
+				boolean partial = status == HttpURLConnection.HTTP_PARTIAL;
+				long[] contentRange = getContentRange(response);
+
+				if (partial)
+				{
+					Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", partialFile.length()));
+
+					if (contentRange != null && contentRange[0] != offset)
+					{
+						Log.w(TAG, String.format("Requested %s from %d, got %d", song, offset, contentRange[0]));
+						response.abort();
+						return false;
+					}
+				}
+				else
+				{
+					journal.reset(song, streamBitRate);
+				}
+
+				long total = partial ? (contentRange == null ? -1 : contentRange[1]) : responseLength;
+
+				if (!journal.accept(response, partial ? offset : 0, total))
+				{
+					response.abort();
+					return false;
+				}
+
+				setContentLength(journal);
+				final long start = partial ? offset : 0;
+				out = new FilterOutputStream(journal.track(new FileOutputStream(partialFile, partial)))
+				{
+					private long written = start;
+
+					@Override
+					public void write(byte[] buffer, int offset, int count) throws IOException
+					{
+						out.write(buffer, offset, count);
+						written += count;
+						notifyProgress();
+						DownloadProgressBus.publishProgress(DownloadFile.this, written);
+					}
+				};
+				long n;
+
+				if (partial && firstSegmentLength > 0)
+				{
+					n = copySegments(musicService, response, in, out, offset, firstSegmentLength, segments);
 				}
+				else
+				{
+					n = copy(in, out);
+				}
+
+				Log.i(TAG, String.format("Downloaded %d bytes to %s", n, partialFile));
+				out.flush();
+				return true;
 			}
-			catch (Exception x)
+			finally
 			{
-				Log.e(TAG, "Failed to get cover art.", x);
+				Util.close(in);
+				Util.close(out);
+			}
+		}
+
+		private void setContentLength(DownloadJournal journal)
+		{
+			long length = journal.getContentLength();
+			contentLength = length < 0 ? null : (int) length;
+		}
+
+		/**
+		 * Returns the number of connections to download the rest of the song with. Only the original file can
+		 * be split, as the size of a transcoded stream is not known in advance.
+		 */
+		private int getSegmentCount(long offset)
+		{
+			int connections = Util.getDownloadConnections(context);
+			Long size = song.getSize();
+
+			if (connections <= 1 || size == null || song.isVideo())
+			{
+				return 1;
+			}
+
+			boolean transcoded = song.getTranscodedSuffix() != null && !song.getTranscodedSuffix().equals(song.getSuffix());
+			boolean downsampled = streamBitRate > 0 && (song.getBitRate() == null || song.getBitRate() > streamBitRate);
+
+			if (transcoded || downsampled)
+			{
+				return 1;
 			}
+
+			return (int) Math.max(1, Math.min(connections, (size - offset) / MIN_SEGMENT_SIZE));
 		}
 
-		private long copy(final InputStream in, OutputStream out) throws IOException
+		/**
+		 * Downloads the rest of the song over several connections. The first segment is read from the given
+		 * response while the others are downloaded into separate files in parallel. These are appended to the
+		 * partial file in order, so that it always holds a contiguous prefix of the song and can be streamed
+		 * from while downloading. Anything the other segments fail to provide is downloaded over a single
+		 * connection once the first segment is done.
+		 */
+		private long copySegments(MusicService musicService, HttpTransport.Response response, InputStream in, OutputStream out, long offset, long firstSegmentLength, int segments) throws Exception
 		{
-			// Start a thread that will close the input stream if the task is
-			// cancelled, thus causing the copy() method to return.
-			new Thread()
+			long[] contentRange = getContentRange(response);
+			long total = contentRange == null ? -1 : contentRange[1];
+			List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+
+			try
 			{
-				@Override
-				public void run()
+				// Only split the file if the server returned what was asked for and agrees on its size.
+				if (contentRange != null && contentRange[0] == offset && total == song.getSize())
 				{
-					while (true)
+					long segmentLength = (total - offset) / segments;
+
+					for (int i = 1; i < segments; i++)
 					{
-						Util.sleepQuietly(3000L);
+						long start = offset + i * segmentLength;
+						long length = i == segments - 1 ? total - start : segmentLength;
+						SegmentTask task = new SegmentTask(musicService, start, length, streamBitRate, getSegmentFile(i));
+						tasks.add(task);
+						task.start();
+					}
+				}
 
-						if (isCancelled())
-						{
-							Util.close(in);
-							return;
-						}
+				long n = copy(in, out);
+				Util.close(in);
 
-						if (!isRunning())
-						{
-							return;
-						}
+				// The other segments only follow on if the first one arrived in full.
+				for (SegmentTask task : n == firstSegmentLength ? tasks : new ArrayList<SegmentTask>())
+				{
+					long appended = task.appendTo(out, this);
+					n += appended;
+
+					if (appended < task.length)
+					{
+						Log.w(TAG, String.format("Segment at %d of %s incomplete, continuing over a single connection", task.offset, song));
+						break;
 					}
 				}
-			}.start();
 
+				long position = offset + n;
+				boolean remaining = total < 0 ? n == firstSegmentLength : position < total;
+
+				if (remaining && !isCancelled())
+				{
+					HttpTransport.Response rest = musicService.getDownloadInputStream(context, song, position, streamBitRate, DownloadTask.this);
+
+					if (rest.getStatusCode() != HttpURLConnection.HTTP_PARTIAL)
+					{
+						throw new IOException(String.format("Server did not resume download of %s at %d", song, position));
+					}
+
+					InputStream restIn = rest.getContent();
+
+					try
+					{
+						n += copy(restIn, out);
+					}
+					finally
+					{
+						Util.close(restIn);
+					}
+				}
+
+				return n;
+			}
+			finally
+			{
+				for (SegmentTask task : tasks)
+				{
+					task.cancel();
+				}
+			}
+		}
+
+		private void downloadAndSaveCoverArt(MusicService musicService) throws Exception
+		{
+			try
+			{
+				if (song.getCoverArt() != null)
+				{
+					int size = Util.getMinDisplayMetric(context);
+					musicService.getCoverArt(context, song, size, true, true, null);
+				}
+			}
+			catch (Exception x)
+			{
+				Log.e(TAG, "Failed to get cover art.", x);
+			}
+		}
+
+		private long copy(InputStream in, OutputStream out) throws IOException
+		{
+			// Cancelling the task closes the connection, which makes a blocked read return.
 			byte[] buffer = new byte[1024 * 16];
 			long count = 0;
 			int n;
@@ -537,4 +822,205 @@ public class DownloadFile
 			return count;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Returns the files that segments of this song may currently be downloaded to.
+	 */
+	public List<File> getSegmentFiles()
+	{
+		List<File> files = new ArrayList<File>();
+
+		for (int i = 1; i < Util.getDownloadConnections(context); i++)
+		{
+			files.add(getSegmentFile(i));
+		}
+
+		return files;
+	}
+
+	public File getJournalFile()
+	{
+		return new File(partialFile.getPath() + ".journal");
+	}
+
+	private File getSegmentFile(int index)
+	{
+		return new File(partialFile.getPath() + ".segment" + index);
+	}
+
+	/**
+	 * Returns the first byte position and the total length from the Content-Range header, or null if it is missing.
+	 * The total length is -1 if the server does not know it.
+	 */
+	private static long[] getContentRange(HttpTransport.Response response)
+	{
+		String header = response.getHeader("Content-Range");
+		Matcher matcher = header == null ? null : CONTENT_RANGE.matcher(header);
+
+		if (matcher == null || !matcher.matches())
+		{
+			return null;
+		}
+
+		long start = Long.parseLong(matcher.group(1));
+		long total = "*".equals(matcher.group(2)) ? -1 : Long.parseLong(matcher.group(2));
+		return new long[]{start, total};
+	}
+
+	/**
+	 * Downloads one segment of a song into a file of its own.
+	 */
+	private class SegmentTask extends CancellableTask
+	{
+		private final MusicService musicService;
+		private final long offset;
+		private final long length;
+		private final int bitRate;
+		private final File file;
+		private long received;
+		private boolean finished;
+
+		public SegmentTask(MusicService musicService, long offset, long length, int bitRate, File file)
+		{
+			this.musicService = musicService;
+			this.offset = offset;
+			this.length = length;
+			this.bitRate = bitRate;
+			this.file = file;
+		}
+
+		@Override
+		public void execute()
+		{
+			InputStream in = null;
+			OutputStream out = null;
+
+			try
+			{
+				HttpTransport.Response response = musicService.getDownloadInputStream(context, song, offset, length, bitRate, this);
+				long[] contentRange = getContentRange(response);
+
+				if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL || contentRange == null || contentRange[0] != offset)
+				{
+					throw new IOException(String.format("Server ignored range request for %s", this));
+				}
+
+				in = response.getContent();
+				out = new FileOutputStream(file);
+				byte[] buffer = new byte[1024 * 16];
+				int n;
+
+				while (!isCancelled() && received < length && (n = in.read(buffer, 0, (int) Math.min(buffer.length, length - received))) != -1)
+				{
+					out.write(buffer, 0, n);
+
+					synchronized (this)
+					{
+						received += n;
+						notifyAll();
+					}
+				}
+			}
+			catch (Exception x)
+			{
+				if (!isCancelled())
+				{
+					Log.w(TAG, String.format("Failed to download %s", this), x);
+				}
+			}
+			finally
+			{
+				Util.close(in);
+				Util.close(out);
+
+				synchronized (this)
+				{
+					finished = true;
+					notifyAll();
+				}
+
+				if (isCancelled())
+				{
+					Util.delete(file);
+				}
+			}
+		}
+
+		/**
+		 * Copies the segment to the given stream as it is being downloaded, and returns the number of bytes copied.
+		 * This is less than the segment length if the segment failed or the download was cancelled.
+		 */
+		public long appendTo(OutputStream out, CancellableTask download) throws Exception
+		{
+			InputStream in = null;
+			byte[] buffer = new byte[1024 * 16];
+			long appended = 0;
+
+			try
+			{
+				while (appended < length)
+				{
+					long available;
+
+					synchronized (this)
+					{
+						while (received == appended && !finished && !download.isCancelled())
+						{
+							wait(1000L);
+						}
+
+						available = received - appended;
+					}
+
+					if (available == 0)
+					{
+						break;
+					}
+
+					if (in == null)
+					{
+						in = new FileInputStream(file);
+					}
+
+					while (available > 0)
+					{
+						int n = in.read(buffer, 0, (int) Math.min(buffer.length, available));
+
+						if (n == -1)
+						{
+							throw new IOException(String.format("Unexpected end of %s", file));
+						}
+
+						out.write(buffer, 0, n);
+						available -= n;
+						appended += n;
+					}
+				}
+			}
+			finally
+			{
+				Util.close(in);
+			}
+
+			return appended;
+		}
+
+		@Override
+		public void cancel()
+		{
+			super.cancel();
+
+			// The file is only read once the segment is done or abandoned, and nothing reads it after this.
+			if (!isRunning())
+			{
+				Util.delete(file);
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("SegmentTask (%s, %d-%d)", song, offset, offset + length - 1);
+		}
+	}
+}
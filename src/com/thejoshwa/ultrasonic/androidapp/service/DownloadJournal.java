@@ -0,0 +1,372 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Describes what has been downloaded to a partial file, so that a download is only resumed if the bytes on disk
+ * belong to the same stream the server would continue with.
+ * <p/>
+ * The journal records the requested bit rate and format, the total length and validators the server returned,
+ * and the length and CRC32 of the data written so far. It is kept next to the partial file and saved every
+ * {@link #SAVE_INTERVAL} bytes, so after a crash the partial file may be longer than the journal says, but
+ * never shorter.
+ */
+public class DownloadJournal
+{
+	private static final String TAG = DownloadJournal.class.getSimpleName();
+	private static final long SAVE_INTERVAL = 256L * 1024L;
+
+	private static final String KEY_BIT_RATE = "bitRate";
+	private static final String KEY_SUFFIX = "suffix";
+	private static final String KEY_CONTENT_LENGTH = "contentLength";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_LENGTH = "length";
+	private static final String KEY_CHECKSUM = "checksum";
+
+	private final File file;
+	private int bitRate;
+	private String suffix;
+	private long contentLength = -1;
+	private String etag;
+	private String lastModified;
+	private long length;
+	private CRC32 checksum = new CRC32();
+	private long savedLength;
+
+	public DownloadJournal(File file)
+	{
+		this.file = file;
+	}
+
+	public int getBitRate()
+	{
+		return bitRate;
+	}
+
+	/**
+	 * Returns the total length of the song, or -1 if the server hasn't said.
+	 */
+	public long getContentLength()
+	{
+		return contentLength;
+	}
+
+	/**
+	 * Starts a new journal for a download from the beginning.
+	 */
+	public synchronized void reset(MusicDirectory.Entry song, int bitRate)
+	{
+		this.bitRate = bitRate;
+		suffix = getSuffix(song);
+		contentLength = -1;
+		etag = null;
+		lastModified = null;
+		length = 0;
+		checksum = new CRC32();
+		savedLength = -1;
+	}
+
+	/**
+	 * Loads the journal and checks it against the partial file and the song. If the partial file holds more than
+	 * the journal accounts for, it is truncated to the part that was verified.
+	 *
+	 * @return Whether the partial file can be resumed.
+	 */
+	public synchronized boolean resume(File partialFile, MusicDirectory.Entry song)
+	{
+		if (!file.exists())
+		{
+			Log.w(TAG, String.format("No journal for %s", partialFile));
+			return false;
+		}
+
+		InputStream in = null;
+
+		try
+		{
+			Properties properties = new Properties();
+			in = new FileInputStream(file);
+			properties.load(in);
+
+			bitRate = Integer.parseInt(properties.getProperty(KEY_BIT_RATE));
+			suffix = properties.getProperty(KEY_SUFFIX);
+			contentLength = Long.parseLong(properties.getProperty(KEY_CONTENT_LENGTH));
+			etag = properties.getProperty(KEY_ETAG);
+			lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+			length = Long.parseLong(properties.getProperty(KEY_LENGTH));
+			savedLength = length;
+			long expectedChecksum = Long.parseLong(properties.getProperty(KEY_CHECKSUM));
+
+			if (!equal(suffix, getSuffix(song)))
+			{
+				Log.w(TAG, String.format("Format of %s changed from %s to %s", partialFile, suffix, getSuffix(song)));
+				return false;
+			}
+
+			if (partialFile.length() < length || (contentLength >= 0 && length > contentLength))
+			{
+				Log.w(TAG, String.format("Length of %s is %d, expected %d", partialFile, partialFile.length(), length));
+				return false;
+			}
+
+			checksum = checksum(partialFile, length);
+
+			if (checksum.getValue() != expectedChecksum)
+			{
+				Log.w(TAG, String.format("Checksum of %s does not match", partialFile));
+				return false;
+			}
+
+			if (partialFile.length() > length)
+			{
+				Log.i(TAG, String.format("Truncating %s from %d to %d bytes", partialFile, partialFile.length(), length));
+				truncate(partialFile, length);
+			}
+
+			return true;
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, String.format("Failed to read journal %s", file), x);
+			return false;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	/**
+	 * Records the length and validators of a response that starts at the given offset.
+	 *
+	 * @return False if the response is for a different version of the song than the one being resumed.
+	 */
+	public synchronized boolean accept(HttpTransport.Response response, long offset, long total)
+	{
+		String responseEtag = response.getHeader("ETag");
+		String responseLastModified = response.getHeader("Last-Modified");
+
+		if (offset > 0)
+		{
+			if (total >= 0 && contentLength >= 0 && total != contentLength)
+			{
+				Log.w(TAG, String.format("Length changed from %d to %d", contentLength, total));
+				return false;
+			}
+
+			if (responseEtag != null && etag != null && !responseEtag.equals(etag))
+			{
+				Log.w(TAG, String.format("ETag changed from %s to %s", etag, responseEtag));
+				return false;
+			}
+
+			if (responseLastModified != null && lastModified != null && !responseLastModified.equals(lastModified))
+			{
+				Log.w(TAG, String.format("Last-Modified changed from %s to %s", lastModified, responseLastModified));
+				return false;
+			}
+		}
+
+		if (total >= 0)
+		{
+			contentLength = total;
+		}
+
+		if (responseEtag != null)
+		{
+			etag = responseEtag;
+		}
+
+		if (responseLastModified != null)
+		{
+			lastModified = responseLastModified;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns a stream that appends to the partial file and keeps the journal up to date.
+	 */
+	public OutputStream track(OutputStream stream)
+	{
+		return new FilterOutputStream(stream)
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int count) throws IOException
+			{
+				out.write(buffer, offset, count);
+				written(buffer, offset, count);
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					save();
+				}
+			}
+		};
+	}
+
+	public synchronized void save()
+	{
+		if (savedLength == length)
+		{
+			return;
+		}
+
+		Properties properties = new Properties();
+		properties.setProperty(KEY_BIT_RATE, String.valueOf(bitRate));
+		properties.setProperty(KEY_CONTENT_LENGTH, String.valueOf(contentLength));
+		properties.setProperty(KEY_LENGTH, String.valueOf(length));
+		properties.setProperty(KEY_CHECKSUM, String.valueOf(checksum.getValue()));
+
+		if (suffix != null)
+		{
+			properties.setProperty(KEY_SUFFIX, suffix);
+		}
+
+		if (etag != null)
+		{
+			properties.setProperty(KEY_ETAG, etag);
+		}
+
+		if (lastModified != null)
+		{
+			properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+		}
+
+		OutputStream out = null;
+
+		try
+		{
+			out = new FileOutputStream(file);
+			properties.store(out, null);
+			savedLength = length;
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to write journal %s", file), x);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	public void delete()
+	{
+		Util.delete(file);
+	}
+
+	private synchronized void written(byte[] buffer, int offset, int count)
+	{
+		checksum.update(buffer, offset, count);
+		length += count;
+
+		if (length - savedLength >= SAVE_INTERVAL)
+		{
+			save();
+		}
+	}
+
+	private static CRC32 checksum(File file, long length) throws IOException
+	{
+		CRC32 checksum = new CRC32();
+		InputStream in = new FileInputStream(file);
+
+		try
+		{
+			byte[] buffer = new byte[1024 * 16];
+			long remaining = length;
+
+			while (remaining > 0)
+			{
+				int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+
+				if (n == -1)
+				{
+					throw new IOException(String.format("Unexpected end of %s", file));
+				}
+
+				checksum.update(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+		finally
+		{
+			Util.close(in);
+		}
+
+		return checksum;
+	}
+
+	private static void truncate(File file, long length) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			raf.setLength(length);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static String getSuffix(MusicDirectory.Entry song)
+	{
+		return song.getTranscodedSuffix() != null ? song.getTranscodedSuffix() : song.getSuffix();
+	}
+
+	private static boolean equal(Object a, Object b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,386 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
+
+/**
+ * The list of songs in the play queue, indexed for the lookups the download service does all the time.
+ * <p/>
+ * Songs are kept in a circular array, so they can be added and removed at both ends in constant time, and
+ * anywhere else by moving whichever side of the list is shorter. Alongside it the list keeps the position of every
+ * download, which makes {@link #indexOf} constant time, and the downloads of every song by id for
+ * {@link #getAll}.
+ * <p/>
+ * Positions are stored relative to a base that moves with the head of the list, so only the downloads that are
+ * actually moved need a new position. They are rebuilt from scratch after a shuffle, or when a download is in the
+ * list more than once, in which case lookups are as slow as with a plain list. Like the rest of the play queue,
+ * the list is not thread safe.
+ */
+public class DownloadList extends AbstractList<DownloadFile> implements RandomAccess
+{
+	private static final int INITIAL_CAPACITY = 16;
+
+	private DownloadFile[] elements = new DownloadFile[INITIAL_CAPACITY];
+	private int head;
+	private int size;
+
+	private final Map<DownloadFile, Long> positions = new HashMap<DownloadFile, Long>();
+	private final Map<String, List<DownloadFile>> songs = new HashMap<String, List<DownloadFile>>();
+	private long base;
+	private boolean indexed = true;
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public DownloadFile get(int index)
+	{
+		checkIndex(index, size);
+		return slot(index);
+	}
+
+	@Override
+	public DownloadFile set(int index, DownloadFile downloadFile)
+	{
+		checkIndex(index, size);
+		DownloadFile old = slot(index);
+
+		if (old != downloadFile)
+		{
+			setSlot(index, downloadFile);
+			removeSong(old);
+			addSong(downloadFile);
+			indexed = false;
+		}
+
+		return old;
+	}
+
+	@Override
+	public void add(int index, DownloadFile downloadFile)
+	{
+		checkIndex(index, size + 1);
+
+		if (size == elements.length)
+		{
+			grow();
+		}
+
+		if (index < size / 2)
+		{
+			// Move the songs before it one step towards the head.
+			head = (head - 1) & (elements.length - 1);
+			base--;
+
+			for (int i = 0; i < index; i++)
+			{
+				shift(i + 1, i);
+			}
+		}
+		else
+		{
+			for (int i = size; i > index; i--)
+			{
+				shift(i - 1, i);
+			}
+		}
+
+		setSlot(index, downloadFile);
+		size++;
+		modCount++;
+
+		addSong(downloadFile);
+
+		if (indexed && positions.put(downloadFile, base + index) != null)
+		{
+			indexed = false;
+		}
+	}
+
+	@Override
+	public DownloadFile remove(int index)
+	{
+		checkIndex(index, size);
+		DownloadFile downloadFile = slot(index);
+
+		if (indexed)
+		{
+			positions.remove(downloadFile);
+		}
+
+		if (index < size / 2)
+		{
+			// Move the songs before it one step towards the tail.
+			for (int i = index; i > 0; i--)
+			{
+				shift(i - 1, i);
+			}
+
+			setSlot(0, null);
+			head = (head + 1) & (elements.length - 1);
+			base++;
+		}
+		else
+		{
+			for (int i = index; i < size - 1; i++)
+			{
+				shift(i + 1, i);
+			}
+
+			setSlot(size - 1, null);
+		}
+
+		size--;
+		modCount++;
+
+		removeSong(downloadFile);
+		return downloadFile;
+	}
+
+	@Override
+	public boolean remove(Object object)
+	{
+		int index = indexOf(object);
+
+		if (index < 0)
+		{
+			return false;
+		}
+
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			setSlot(i, null);
+		}
+
+		head = 0;
+		size = 0;
+		base = 0;
+		positions.clear();
+		songs.clear();
+		indexed = true;
+		modCount++;
+	}
+
+	@Override
+	public int indexOf(Object object)
+	{
+		if (!(object instanceof DownloadFile))
+		{
+			return -1;
+		}
+
+		if (!indexed)
+		{
+			reindex();
+		}
+
+		Long position = positions.get(object);
+		return position == null ? -1 : (int) (position - base);
+	}
+
+	@Override
+	public boolean contains(Object object)
+	{
+		return indexOf(object) >= 0;
+	}
+
+	/**
+	 * Moves a song to another position, only touching the songs in between.
+	 *
+	 * @return The song that was moved.
+	 */
+	public DownloadFile move(int from, int to)
+	{
+		checkIndex(from, size);
+		checkIndex(to, size);
+		DownloadFile downloadFile = slot(from);
+
+		if (from < to)
+		{
+			for (int i = from; i < to; i++)
+			{
+				shift(i + 1, i);
+			}
+		}
+		else
+		{
+			for (int i = from; i > to; i--)
+			{
+				shift(i - 1, i);
+			}
+		}
+
+		setSlot(to, downloadFile);
+		modCount++;
+
+		if (indexed)
+		{
+			positions.put(downloadFile, base + to);
+		}
+
+		return downloadFile;
+	}
+
+	/**
+	 * Puts the songs in random order, and indexes them again once.
+	 */
+	public void shuffle()
+	{
+		Random random = new Random();
+
+		for (int i = size - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			DownloadFile downloadFile = slot(i);
+			setSlot(i, slot(j));
+			setSlot(j, downloadFile);
+		}
+
+		modCount++;
+		reindex();
+	}
+
+	/**
+	 * Returns the downloads of the given song, in the order they were added.
+	 */
+	public List<DownloadFile> getAll(MusicDirectory.Entry song)
+	{
+		List<DownloadFile> downloadFiles = songs.get(song.getId());
+		return downloadFiles == null ? Collections.<DownloadFile>emptyList() : Collections.unmodifiableList(downloadFiles);
+	}
+
+	private DownloadFile slot(int index)
+	{
+		return elements[(head + index) & (elements.length - 1)];
+	}
+
+	private void setSlot(int index, DownloadFile downloadFile)
+	{
+		elements[(head + index) & (elements.length - 1)] = downloadFile;
+	}
+
+	/**
+	 * Copies the song at one position to another, and updates its position.
+	 */
+	private void shift(int from, int to)
+	{
+		DownloadFile downloadFile = slot(from);
+		setSlot(to, downloadFile);
+
+		if (indexed && downloadFile != null)
+		{
+			positions.put(downloadFile, base + to);
+		}
+	}
+
+	private void grow()
+	{
+		DownloadFile[] grown = new DownloadFile[elements.length * 2];
+
+		for (int i = 0; i < size; i++)
+		{
+			grown[i] = slot(i);
+		}
+
+		elements = grown;
+		head = 0;
+	}
+
+	private void reindex()
+	{
+		positions.clear();
+		indexed = true;
+
+		// Backwards, so that a download which is in the list more than once gets its first position.
+		for (int i = size - 1; i >= 0; i--)
+		{
+			if (positions.put(slot(i), base + i) != null)
+			{
+				indexed = false;
+			}
+		}
+	}
+
+	private void addSong(DownloadFile downloadFile)
+	{
+		String id = downloadFile.getSong().getId();
+		List<DownloadFile> downloadFiles = songs.get(id);
+
+		if (downloadFiles == null)
+		{
+			downloadFiles = new ArrayList<DownloadFile>(1);
+			songs.put(id, downloadFiles);
+		}
+
+		downloadFiles.add(downloadFile);
+	}
+
+	private void removeSong(DownloadFile downloadFile)
+	{
+		String id = downloadFile.getSong().getId();
+		List<DownloadFile> downloadFiles = songs.get(id);
+
+		if (downloadFiles == null)
+		{
+			return;
+		}
+
+		for (int i = 0; i < downloadFiles.size(); i++)
+		{
+			if (downloadFiles.get(i) == downloadFile)
+			{
+				downloadFiles.remove(i);
+				break;
+			}
+		}
+
+		if (downloadFiles.isEmpty())
+		{
+			songs.remove(id);
+		}
+	}
+
+	private static void checkIndex(int index, int limit)
+	{
+		if (index < 0 || index >= limit)
+		{
+			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, limit));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+/**
+ * Decides how far ahead to download and how much to buffer before playing, from the measured download rate of
+ * the current network. The bit rate is chosen by {@link BitRateController}.
+ * <p/>
+ * The settings for preload count and buffer length are the limits. Until a rate has been measured on the
+ * network they are used as they are, and the preload count is only ever lowered on metered networks.
+ */
+public class DownloadPlanner
+{
+	private static final String TAG = DownloadPlanner.class.getSimpleName();
+
+	// Download at least this many times faster than playback before only preloading the next song.
+	private static final double PRELOAD_HEADROOM = 4.0;
+
+	private static final long MIN_BUFFER_SECONDS = 2L;
+
+	private final Context context;
+	private final ThroughputEstimator estimator;
+
+	public DownloadPlanner(Context context, ThroughputEstimator estimator)
+	{
+		this.context = context;
+		this.estimator = estimator;
+	}
+
+	/**
+	 * Returns how many songs after the current one to download. On a network that isn't metered this is the
+	 * preload setting. On a metered one, only as many songs as the download rate calls for are preloaded, so that
+	 * songs which may never be played aren't paid for, but never so few that the next song isn't ready in time.
+	 *
+	 * @param current  The song being played, or null.
+	 * @param next     The song after it, or null.
+	 * @param position The playback position in the current song, in milliseconds.
+	 */
+	public int getPreloadCount(DownloadFile current, DownloadFile next, int position)
+	{
+		int limit = Util.getPreloadCount(context);
+		double rate = estimator.getBytesPerSecond();
+
+		if (!Util.isNetworkMetered(context) || rate <= 0 || current == null || next == null)
+		{
+			return limit;
+		}
+
+		// The current song is downloaded first, then the next one has to be ready before the current one ends.
+		double secondsUntilReady = (getRemainingBytes(current) + getRemainingBytes(next)) / rate;
+		double secondsLeft = getSeconds(current) - position / 1000.0;
+
+		if (secondsUntilReady >= secondsLeft)
+		{
+			Log.d(TAG, String.format("Next song ready in %.0fs, %.0fs left to play, preloading up to %d", secondsUntilReady, secondsLeft, limit));
+			return limit;
+		}
+
+		// The closer the download rate is to the playback rate, the further ahead it has to get while it can.
+		double ratio = rate / getBytesPerSecond(next);
+		int count = (int) Math.ceil(PRELOAD_HEADROOM / ratio);
+		return Math.max(1, Math.min(limit, count));
+	}
+
+	/**
+	 * Returns how many seconds of the song to buffer before playing it from the given position, or 0 to wait
+	 * for the whole song. Never more than the buffer length setting.
+	 */
+	public long getBufferLength(DownloadFile downloadFile, int position)
+	{
+		long limit = Util.getBufferLength(context);
+		double rate = estimator.getBytesPerSecond();
+
+		if (limit == 0 || rate <= 0)
+		{
+			return limit;
+		}
+
+		// If the song downloads slower than it plays, buffer enough that the download finishes as playback
+		// reaches the end.
+		double ratio = rate / getBytesPerSecond(downloadFile);
+		double secondsLeft = getSeconds(downloadFile) - position / 1000.0;
+		long seconds = MIN_BUFFER_SECONDS;
+
+		if (ratio < 1.0 && secondsLeft > 0)
+		{
+			seconds += (long) Math.ceil(secondsLeft * (1.0 - ratio));
+		}
+
+		seconds = Math.min(limit, seconds);
+
+		Log.d(TAG, String.format("Download is %.1f times playback speed, buffering %ds of %s", ratio, seconds, downloadFile));
+		return seconds;
+	}
+
+	private static double getBytesPerSecond(DownloadFile downloadFile)
+	{
+		return downloadFile.getBitRate() * 1024.0 / 8.0;
+	}
+
+	private static double getSeconds(DownloadFile downloadFile)
+	{
+		Integer duration = downloadFile.getSong().getDuration();
+		return duration == null ? 0 : duration;
+	}
+
+	private static long getRemainingBytes(DownloadFile downloadFile)
+	{
+		if (downloadFile.isWorkDone())
+		{
+			return 0;
+		}
+
+		Integer contentLength = downloadFile.getContentLength();
+		long length = contentLength != null ? contentLength : (long) (getSeconds(downloadFile) * getBytesPerSecond(downloadFile));
+		return Math.max(0, length - downloadFile.getPartialFile().length());
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers download progress to whoever is interested, so that nothing has to poll the partial files.
+ * <p/>
+ * Events are delivered on the download thread, so listeners must return quickly and hand anything slow over
+ * to a thread of their own.
+ */
+public final class DownloadProgressBus
+{
+	private static final String TAG = DownloadProgressBus.class.getSimpleName();
+	private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<Listener>();
+
+	public enum State
+	{
+		STARTED,
+		COMPLETED,
+		FAILED,
+		CANCELLED
+	}
+
+	private DownloadProgressBus()
+	{
+	}
+
+	public static void register(Listener listener)
+	{
+		LISTENERS.add(listener);
+	}
+
+	public static void unregister(Listener listener)
+	{
+		LISTENERS.remove(listener);
+	}
+
+	static void publishProgress(DownloadFile downloadFile, long bytes)
+	{
+		for (Listener listener : LISTENERS)
+		{
+			try
+			{
+				listener.onProgress(downloadFile, bytes);
+			}
+			catch (Exception x)
+			{
+				Log.w(TAG, "Error in download progress listener", x);
+			}
+		}
+	}
+
+	static void publishState(DownloadFile downloadFile, State state)
+	{
+		Log.d(TAG, String.format("%s: %s", downloadFile, state));
+
+		for (Listener listener : LISTENERS)
+		{
+			try
+			{
+				listener.onStateChanged(downloadFile, state);
+			}
+			catch (Exception x)
+			{
+				Log.w(TAG, "Error in download progress listener", x);
+			}
+		}
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called when more of the song has been written to the partial file.
+		 *
+		 * @param bytes The length of the partial file.
+		 */
+		void onProgress(DownloadFile downloadFile, long bytes);
+
+		void onStateChanged(DownloadFile downloadFile, State state);
+	}
+}
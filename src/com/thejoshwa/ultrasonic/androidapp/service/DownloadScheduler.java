@@ -0,0 +1,281 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs song downloads on a fixed number of shared worker threads.
+ * <p/>
+ * Every download is scheduled with a priority. When all workers are busy, a new download takes the place of the
+ * least important running one if that one has a lower priority, otherwise it is not started. A download that is
+ * pushed out this way is cancelled and resumes from its partial file the next time it is scheduled.
+ */
+public class DownloadScheduler
+{
+	private static final String TAG = DownloadScheduler.class.getSimpleName();
+
+	/**
+	 * Download priorities, most important first.
+	 */
+	public enum Priority
+	{
+		CURRENT,
+		NEXT,
+		PRELOAD,
+		BACKGROUND
+	}
+
+	private final ThreadPoolExecutor executor;
+	private final Map<DownloadFile, Priority> active = new LinkedHashMap<DownloadFile, Priority>();
+	private final AtomicLong sequence = new AtomicLong();
+	private int workers;
+
+	public DownloadScheduler(int workers)
+	{
+		this.workers = Math.max(1, workers);
+
+		// A cancelled download may still hold its worker for a moment, so later downloads can be queued
+		// briefly. The queue hands them out by priority, then in the order they were scheduled.
+		executor = new ThreadPoolExecutor(this.workers, this.workers, 30L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public synchronized void setWorkers(int workers)
+	{
+		workers = Math.max(1, workers);
+
+		if (workers == this.workers)
+		{
+			return;
+		}
+
+		Log.i(TAG, String.format("Changing number of download workers from %d to %d", this.workers, workers));
+
+		if (workers > this.workers)
+		{
+			executor.setMaximumPoolSize(workers);
+			executor.setCorePoolSize(workers);
+		}
+		else
+		{
+			executor.setCorePoolSize(workers);
+			executor.setMaximumPoolSize(workers);
+		}
+
+		this.workers = workers;
+	}
+
+	/**
+	 * Brings the running downloads in line with the given ones, which must be ordered from most to least
+	 * important. Running downloads that are no longer wanted are kept until their worker is needed.
+	 *
+	 * @return The downloads that were started.
+	 */
+	public synchronized List<DownloadFile> schedule(Map<DownloadFile, Priority> wanted)
+	{
+		purge();
+
+		for (Map.Entry<DownloadFile, Priority> entry : active.entrySet())
+		{
+			Priority priority = wanted.get(entry.getKey());
+			entry.setValue(priority == null ? Priority.BACKGROUND : priority);
+		}
+
+		List<DownloadFile> started = new ArrayList<DownloadFile>();
+
+		for (Map.Entry<DownloadFile, Priority> entry : wanted.entrySet())
+		{
+			DownloadFile downloadFile = entry.getKey();
+			Priority priority = entry.getValue();
+
+			if (active.containsKey(downloadFile))
+			{
+				continue;
+			}
+
+			// Nothing after this can be more important, so it wouldn't get a worker either.
+			if (active.size() >= workers && !preempt(priority))
+			{
+				break;
+			}
+
+			Log.i(TAG, String.format("Scheduling download of %s with priority %s", downloadFile.getSong(), priority));
+			downloadFile.download(new PriorityExecutor(priority));
+			active.put(downloadFile, priority);
+			started.add(downloadFile);
+		}
+
+		return started;
+	}
+
+	public synchronized boolean isScheduled(DownloadFile downloadFile)
+	{
+		purge();
+		return active.containsKey(downloadFile);
+	}
+
+	/**
+	 * Returns the songs being downloaded, most important first.
+	 */
+	public synchronized List<DownloadFile> getScheduled()
+	{
+		purge();
+
+		List<DownloadFile> result = new ArrayList<DownloadFile>(active.size());
+
+		for (Priority priority : Priority.values())
+		{
+			for (Map.Entry<DownloadFile, Priority> entry : active.entrySet())
+			{
+				if (entry.getValue() == priority)
+				{
+					result.add(entry.getKey());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	public synchronized void cancel(DownloadFile downloadFile)
+	{
+		if (active.remove(downloadFile) != null)
+		{
+			downloadFile.cancelDownload();
+		}
+	}
+
+	public synchronized void cancelAll()
+	{
+		for (DownloadFile downloadFile : active.keySet())
+		{
+			downloadFile.cancelDownload();
+		}
+
+		active.clear();
+	}
+
+	public synchronized void shutdown()
+	{
+		cancelAll();
+		executor.shutdownNow();
+	}
+
+	private boolean preempt(Priority priority)
+	{
+		DownloadFile victim = null;
+		Priority victimPriority = null;
+
+		// Of the least important downloads, push out the one scheduled last as it has made the least progress.
+		for (Map.Entry<DownloadFile, Priority> entry : active.entrySet())
+		{
+			if (entry.getValue().compareTo(priority) > 0 && (victim == null || entry.getValue().compareTo(victimPriority) >= 0))
+			{
+				victim = entry.getKey();
+				victimPriority = entry.getValue();
+			}
+		}
+
+		if (victim == null)
+		{
+			return false;
+		}
+
+		Log.i(TAG, String.format("Pausing download of %s (%s) for a %s download", victim.getSong(), victimPriority, priority));
+		cancel(victim);
+		return true;
+	}
+
+	private void purge()
+	{
+		Iterator<DownloadFile> iterator = active.keySet().iterator();
+
+		while (iterator.hasNext())
+		{
+			if (!iterator.next().isDownloading())
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Submits tasks to the shared workers with a fixed priority.
+	 */
+	private class PriorityExecutor implements Executor
+	{
+		private final Priority priority;
+
+		public PriorityExecutor(Priority priority)
+		{
+			this.priority = priority;
+		}
+
+		@Override
+		public void execute(Runnable runnable)
+		{
+			executor.execute(new PrioritizedRunnable(runnable, priority, sequence.getAndIncrement()));
+		}
+	}
+
+	private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable>
+	{
+		private final Runnable runnable;
+		private final Priority priority;
+		private final long sequence;
+
+		public PrioritizedRunnable(Runnable runnable, Priority priority, long sequence)
+		{
+			this.runnable = runnable;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run()
+		{
+			runnable.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedRunnable other)
+		{
+			int result = priority.compareTo(other.priority);
+
+			if (result != 0)
+			{
+				return result;
+			}
+
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
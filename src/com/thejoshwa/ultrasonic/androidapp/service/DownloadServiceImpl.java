@@ -55,10 +55,10 @@ import com.thejoshwa.ultrasonic.androidapp.provider.UltraSonicAppWidgetProvider4
 import com.thejoshwa.ultrasonic.androidapp.provider.UltraSonicAppWidgetProvider4x3;
 import com.thejoshwa.ultrasonic.androidapp.provider.UltraSonicAppWidgetProvider4x4;
 import com.thejoshwa.ultrasonic.androidapp.receiver.MediaButtonIntentReceiver;
+import com.thejoshwa.ultrasonic.androidapp.util.BoundedCache;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
-import com.thejoshwa.ultrasonic.androidapp.util.LRUCache;
 import com.thejoshwa.ultrasonic.androidapp.util.ShufflePlayBuffer;
 import com.thejoshwa.ultrasonic.androidapp.util.SimpleServiceBinder;
 import com.thejoshwa.ultrasonic.androidapp.util.StreamProxy;
@@ -67,9 +67,15 @@ import com.thejoshwa.ultrasonic.androidapp.util.Util;
 import java.io.File;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.thejoshwa.ultrasonic.androidapp.domain.PlayerState.COMPLETED;
 import static com.thejoshwa.ultrasonic.androidapp.domain.PlayerState.DOWNLOADING;
@@ -100,41 +106,51 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	private MediaPlayer mediaPlayer;
 	private MediaPlayer nextMediaPlayer;
 	private boolean nextSetup;
-	private final List<DownloadFile> downloadList = new ArrayList<DownloadFile>();
-	private final List<DownloadFile> backgroundDownloadList = new ArrayList<DownloadFile>();
+
+	// Locking: the service monitor guards the playback state and the media players, and queueLock guards the two
+	// download lists. Both may be held at once, but only in that order. Downloads are checked on their own thread,
+	// which takes either lock only briefly, and the player state, position and current song are volatile so that
+	// they can be read without a lock.
+	private final Object queueLock = new Object();
+	private final DownloadList downloadList = new DownloadList();
+	private final DownloadList backgroundDownloadList = new DownloadList();
+	private final ExecutorService downloadChecker = Executors.newSingleThreadExecutor();
+	private final AtomicBoolean downloadCheckPending = new AtomicBoolean();
 	private final Handler handler = new Handler();
 	private Handler mediaPlayerHandler;
 	private final DownloadServiceLifecycleSupport lifecycleSupport = new DownloadServiceLifecycleSupport(this);
 	private final ShufflePlayBuffer shufflePlayBuffer = new ShufflePlayBuffer(this);
 
-	private final LRUCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new LRUCache<MusicDirectory.Entry, DownloadFile>(100);
+	private final BoundedCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new BoundedCache<MusicDirectory.Entry, DownloadFile>(100);
 	private final List<DownloadFile> cleanupCandidates = new ArrayList<DownloadFile>();
+	private final DownloadScheduler downloadScheduler = new DownloadScheduler(1);
+	private final ThroughputEstimator throughputEstimator = new ThroughputEstimator(this);
+	private final DownloadPlanner downloadPlanner = new DownloadPlanner(this, throughputEstimator);
+	private final BitRateController bitRateController = new BitRateController(this, throughputEstimator);
 	private final Scrobbler scrobbler = new Scrobbler();
 	private final JukeboxService jukeboxService = new JukeboxService(this);
 	private Notification notification = new Notification(R.drawable.ic_stat_ultrasonic, null, System.currentTimeMillis());
 
-	private DownloadFile currentPlaying;
-	private DownloadFile nextPlaying;
-	private DownloadFile currentDownloading;
+	private volatile DownloadFile currentPlaying;
+	private volatile DownloadFile nextPlaying;
 	private CancellableTask bufferTask;
 	private CancellableTask nextPlayingTask;
-	private PlayerState playerState = IDLE;
-	private PlayerState nextPlayerState = IDLE;
-	private boolean shufflePlay;
-	private long revision;
+	private volatile PlayerState playerState = IDLE;
+	private volatile PlayerState nextPlayerState = IDLE;
+	private volatile boolean shufflePlay;
+	private final AtomicLong revision = new AtomicLong();
 	private static DownloadService instance;
 	private String suggestedPlaylistName;
 	private PowerManager.WakeLock wakeLock;
 	private boolean keepScreenOn;
-	private int cachedPosition;
+	private final PositionTracker positionTracker = new PositionTracker();
 
 	private static boolean equalizerAvailable;
 	private static boolean visualizerAvailable;
 	private EqualizerController equalizerController;
 	private VisualizerController visualizerController;
 	private boolean showVisualization;
-	private boolean jukeboxEnabled;
-	private PositionCache positionCache;
+	private volatile boolean jukeboxEnabled;
 	private StreamProxy proxy;
 	public RemoteControlClient remoteControlClient;
 	private AudioManager audioManager;
@@ -260,6 +276,8 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, this.getClass().getName());
 		wakeLock.setReferenceCounted(false);
 
+		DownloadProgressBus.register(throughputEstimator);
+
 		instance = this;
 		lifecycleSupport.onCreate();
 	}
@@ -290,6 +308,9 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 			mediaPlayerLooper.quit();
 			shufflePlayBuffer.shutdown();
+			downloadChecker.shutdownNow();
+			downloadScheduler.shutdown();
+			DownloadProgressBus.unregister(throughputEstimator);
 
 			if (equalizerController != null)
 			{
@@ -350,44 +371,46 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			return;
 		}
 
-		if (newPlaylist)
-		{
-			downloadList.clear();
-		}
+		boolean wasLast = false;
 
-		if (playNext)
+		synchronized (queueLock)
 		{
-			if (autoplay && getCurrentPlayingIndex() >= 0)
+			if (newPlaylist)
 			{
-				offset = 0;
+				downloadList.clear();
 			}
 
-			for (MusicDirectory.Entry song : songs)
+			if (playNext)
 			{
-				DownloadFile downloadFile = new DownloadFile(this, song, save);
-				downloadList.add(getCurrentPlayingIndex() + offset, downloadFile);
-				offset++;
-			}
-
-			revision++;
-		}
-		else
-		{
-			int size = size();
-			int index = getCurrentPlayingIndex();
+				if (autoplay && getCurrentPlayingIndex() >= 0)
+				{
+					offset = 0;
+				}
 
-			for (MusicDirectory.Entry song : songs)
-			{
-				DownloadFile downloadFile = new DownloadFile(this, song, save);
-				downloadList.add(downloadFile);
+				for (MusicDirectory.Entry song : songs)
+				{
+					DownloadFile downloadFile = new DownloadFile(this, song, save);
+					downloadList.add(getCurrentPlayingIndex() + offset, downloadFile);
+					offset++;
+				}
 			}
-
-			if (!autoplay && (size - 1) == index)
+			else
 			{
-				setNextPlaying();
+				wasLast = (downloadList.size() - 1) == getCurrentPlayingIndex();
+
+				for (MusicDirectory.Entry song : songs)
+				{
+					DownloadFile downloadFile = new DownloadFile(this, song, save);
+					downloadList.add(downloadFile);
+				}
 			}
 
-			revision++;
+			revision.incrementAndGet();
+		}
+
+		if (!playNext && !autoplay && wasLast)
+		{
+			setNextPlaying();
 		}
 
 		updateJukeboxPlaylist();
@@ -402,7 +425,10 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		{
 			if (currentPlaying == null)
 			{
-				currentPlaying = downloadList.get(0);
+				synchronized (queueLock)
+				{
+					currentPlaying = downloadList.get(0);
+				}
 				currentPlaying.setPlaying(true);
 			}
 
@@ -413,15 +439,18 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized void downloadBackground(List<MusicDirectory.Entry> songs, boolean save)
+	public void downloadBackground(List<MusicDirectory.Entry> songs, boolean save)
 	{
-		for (MusicDirectory.Entry song : songs)
+		synchronized (queueLock)
 		{
-			DownloadFile downloadFile = new DownloadFile(this, song, save);
-			backgroundDownloadList.add(downloadFile);
-		}
+			for (MusicDirectory.Entry song : songs)
+			{
+				DownloadFile downloadFile = new DownloadFile(this, song, save);
+				backgroundDownloadList.add(downloadFile);
+			}
 
-		revision++;
+			revision.incrementAndGet();
+		}
 
 		checkDownloads();
 		lifecycleSupport.serializeDownloadQueue();
@@ -500,13 +529,16 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	@Override
 	public synchronized void shuffle()
 	{
-		Collections.shuffle(downloadList);
-		if (currentPlaying != null)
+		synchronized (queueLock)
 		{
-			downloadList.remove(getCurrentPlayingIndex());
-			downloadList.add(0, currentPlaying);
+			downloadList.shuffle();
+			int index = getCurrentPlayingIndex();
+			if (index > 0)
+			{
+				downloadList.move(index, 0);
+			}
+			revision.incrementAndGet();
 		}
-		revision++;
 		lifecycleSupport.serializeDownloadQueue();
 		updateJukeboxPlaylist();
 		setNextPlaying();
@@ -550,20 +582,22 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized DownloadFile forSong(MusicDirectory.Entry song)
+	public DownloadFile forSong(MusicDirectory.Entry song)
 	{
-		for (DownloadFile downloadFile : downloadList)
+		synchronized (queueLock)
 		{
-			if (downloadFile.getSong().equals(song) && ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone()))
+			for (DownloadFile downloadFile : downloadList.getAll(song))
 			{
-				return downloadFile;
+				if ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone())
+				{
+					return downloadFile;
+				}
 			}
-		}
-		for (DownloadFile downloadFile : backgroundDownloadList)
-		{
-			if (downloadFile.getSong().equals(song))
+
+			List<DownloadFile> backgroundDownloads = backgroundDownloadList.getAll(song);
+			if (!backgroundDownloads.isEmpty())
 			{
-				return downloadFile;
+				return backgroundDownloads.get(0);
 			}
 		}
 
@@ -583,28 +617,38 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized void clearBackground()
+	public void clearBackground()
 	{
-		if (currentDownloading != null && backgroundDownloadList.contains(currentDownloading))
+		List<DownloadFile> backgroundDownloads;
+
+		synchronized (queueLock)
+		{
+			backgroundDownloads = new ArrayList<DownloadFile>(backgroundDownloadList);
+			backgroundDownloadList.clear();
+		}
+
+		for (DownloadFile downloadFile : backgroundDownloads)
 		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
+			downloadScheduler.cancel(downloadFile);
 		}
-		backgroundDownloadList.clear();
 	}
 
 	@Override
 	public synchronized void clearIncomplete()
 	{
 		reset();
-		Iterator<DownloadFile> iterator = downloadList.iterator();
 
-		while (iterator.hasNext())
+		synchronized (queueLock)
 		{
-			DownloadFile downloadFile = iterator.next();
-			if (!downloadFile.isCompleteFileAvailable())
+			Iterator<DownloadFile> iterator = downloadList.iterator();
+
+			while (iterator.hasNext())
 			{
-				iterator.remove();
+				DownloadFile downloadFile = iterator.next();
+				if (!downloadFile.isCompleteFileAvailable())
+				{
+					iterator.remove();
+				}
 			}
 		}
 
@@ -613,21 +657,23 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized int size()
+	public int size()
 	{
-		return downloadList.size();
+		synchronized (queueLock)
+		{
+			return downloadList.size();
+		}
 	}
 
 	public synchronized void clear(boolean serialize)
 	{
 		reset();
-		downloadList.clear();
-		revision++;
-		if (currentDownloading != null)
+		synchronized (queueLock)
 		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
+			downloadList.clear();
+			revision.incrementAndGet();
 		}
+		downloadScheduler.cancelAll();
 		setCurrentPlaying(null);
 
 		if (serialize)
@@ -639,27 +685,29 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized void remove(int which)
+	public void remove(int which)
 	{
-		downloadList.remove(which);
+		synchronized (queueLock)
+		{
+			downloadList.remove(which);
+		}
 	}
 
 	@Override
 	public synchronized void remove(DownloadFile downloadFile)
 	{
-		if (downloadFile == currentDownloading)
-		{
-			currentDownloading.cancelDownload();
-			currentDownloading = null;
-		}
+		downloadScheduler.cancel(downloadFile);
 		if (downloadFile == currentPlaying)
 		{
 			reset();
 			setCurrentPlaying(null);
 		}
-		downloadList.remove(downloadFile);
-		backgroundDownloadList.remove(downloadFile);
-		revision++;
+		synchronized (queueLock)
+		{
+			downloadList.remove(downloadFile);
+			backgroundDownloadList.remove(downloadFile);
+			revision.incrementAndGet();
+		}
 		lifecycleSupport.serializeDownloadQueue();
 		updateJukeboxPlaylist();
 		if (downloadFile == nextPlaying)
@@ -669,7 +717,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized void delete(List<MusicDirectory.Entry> songs)
+	public void delete(List<MusicDirectory.Entry> songs)
 	{
 		for (MusicDirectory.Entry song : songs)
 		{
@@ -678,7 +726,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized void unpin(List<MusicDirectory.Entry> songs)
+	public void unpin(List<MusicDirectory.Entry> songs)
 	{
 		for (MusicDirectory.Entry song : songs)
 		{
@@ -688,14 +736,19 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 	synchronized void setCurrentPlaying(int currentPlayingIndex)
 	{
-		try
-		{
-			setCurrentPlaying(downloadList.get(currentPlayingIndex));
-		}
-		catch (IndexOutOfBoundsException x)
+		DownloadFile downloadFile;
+
+		synchronized (queueLock)
 		{
-			// Ignored
+			if (currentPlayingIndex < 0 || currentPlayingIndex >= downloadList.size())
+			{
+				return;
+			}
+
+			downloadFile = downloadList.get(currentPlayingIndex);
 		}
+
+		setCurrentPlaying(downloadFile);
 	}
 
 	synchronized void setCurrentPlaying(DownloadFile currentPlaying)
@@ -755,22 +808,32 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			return;
 		}
 
-		int index = getCurrentPlayingIndex();
+		DownloadFile next = null;
 
-		if (index != -1)
+		synchronized (queueLock)
 		{
-			switch (getRepeatMode())
+			int index = getCurrentPlayingIndex();
+
+			if (index != -1)
 			{
-				case OFF:
-					index += 1;
-					break;
-				case ALL:
-					index = (index + 1) % size();
-					break;
-				case SINGLE:
-					break;
-				default:
-					break;
+				switch (getRepeatMode())
+				{
+					case OFF:
+						index += 1;
+						break;
+					case ALL:
+						index = (index + 1) % downloadList.size();
+						break;
+					case SINGLE:
+						break;
+					default:
+						break;
+				}
+			}
+
+			if (index < downloadList.size() && index != -1)
+			{
+				next = downloadList.get(index);
 			}
 		}
 
@@ -781,9 +844,9 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			nextPlayingTask = null;
 		}
 
-		if (index < size() && index != -1)
+		if (next != null)
 		{
-			nextPlaying = downloadList.get(index);
+			nextPlaying = next;
 			nextPlayingTask = new CheckCompletionTask(nextPlaying);
 			nextPlayingTask.start();
 		}
@@ -795,9 +858,12 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized int getCurrentPlayingIndex()
+	public int getCurrentPlayingIndex()
 	{
-		return downloadList.indexOf(currentPlaying);
+		synchronized (queueLock)
+		{
+			return downloadList.indexOf(currentPlaying);
+		}
 	}
 
 	@Override
@@ -809,13 +875,14 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	@Override
 	public DownloadFile getCurrentDownloading()
 	{
-		return currentDownloading;
+		List<DownloadFile> downloads = downloadScheduler.getScheduled();
+		return downloads.isEmpty() ? null : downloads.get(0);
 	}
 
 	@Override
 	public List<DownloadFile> getSongs()
 	{
-		return downloadList;
+		return getDownloadListSnapshot();
 	}
 
 	@Override
@@ -823,7 +890,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	{
 		long totalDuration = 0;
 
-		for (DownloadFile downloadFile : downloadList)
+		for (DownloadFile downloadFile : getDownloadListSnapshot())
 		{
 			Entry entry = downloadFile.getSong();
 
@@ -845,18 +912,32 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized List<DownloadFile> getDownloads()
+	public List<DownloadFile> getDownloads()
 	{
-		List<DownloadFile> temp = new ArrayList<DownloadFile>();
-		temp.addAll(downloadList);
-		temp.addAll(backgroundDownloadList);
-		return temp;
+		synchronized (queueLock)
+		{
+			List<DownloadFile> temp = new ArrayList<DownloadFile>(downloadList.size() + backgroundDownloadList.size());
+			temp.addAll(downloadList);
+			temp.addAll(backgroundDownloadList);
+			return temp;
+		}
+	}
+
+	private List<DownloadFile> getDownloadListSnapshot()
+	{
+		synchronized (queueLock)
+		{
+			return new ArrayList<DownloadFile>(downloadList);
+		}
 	}
 
 	@Override
 	public List<DownloadFile> getBackgroundDownloads()
 	{
-		return backgroundDownloadList;
+		synchronized (queueLock)
+		{
+			return new ArrayList<DownloadFile>(backgroundDownloadList);
+		}
 	}
 
 	/**
@@ -930,6 +1011,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		mediaPlayer = nextMediaPlayer;
 		nextMediaPlayer = tmp;
 		setCurrentPlaying(nextPlaying);
+		positionTracker.set(0, false);
 		setPlayerState(PlayerState.STARTED);
 		setupHandlers(currentPlaying, false);
 		setNextPlaying();
@@ -975,7 +1057,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			else
 			{
 				mediaPlayer.seekTo(position);
-				cachedPosition = position;
+				positionTracker.seek(position);
 
 				updateRemoteControl();
 			}
@@ -1162,7 +1244,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	}
 
 	@Override
-	public synchronized int getPlayerPosition()
+	public int getPlayerPosition()
 	{
 		try
 		{
@@ -1171,17 +1253,51 @@ public class DownloadServiceImpl extends Service implements DownloadService
 				return 0;
 			}
 
-			return jukeboxEnabled ? jukeboxService.getPositionSeconds() * 1000 : cachedPosition;
+			if (jukeboxEnabled)
+			{
+				return jukeboxService.getPositionSeconds() * 1000;
+			}
+
+			if (playerState == STARTED && positionTracker.needsSync())
+			{
+				return syncPlayerPosition();
+			}
+
+			return positionTracker.get();
 		}
 		catch (Exception x)
 		{
-			handleError(x);
-			return 0;
+			// Not handled as a player error, as this is also called by the download checker and scheduler, which
+			// mustn't take the lock of the service.
+			Log.w(TAG, "Failed to get player position", x);
+			return positionTracker.get();
+		}
+	}
+
+	/**
+	 * Asks the media player for the position, or estimates it if the player can't tell.
+	 */
+	private int syncPlayerPosition()
+	{
+		try
+		{
+			long generation = positionTracker.getGeneration();
+
+			if (!positionTracker.sync(mediaPlayer.getCurrentPosition(), generation))
+			{
+				Log.d(TAG, "Position changed while it was read from the player");
+			}
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, "Failed to get current position", x);
 		}
+
+		return positionTracker.get();
 	}
 
 	@Override
-	public synchronized int getPlayerDuration()
+	public int getPlayerDuration()
 	{
 		if (currentPlaying != null)
 		{
@@ -1217,6 +1333,15 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 		this.playerState = playerState;
 
+		if (playerState == IDLE)
+		{
+			positionTracker.set(0, false);
+		}
+		else
+		{
+			positionTracker.setPlaying(playerState == STARTED);
+		}
+
 		if (this.playerState == PAUSED)
 		{
 			lifecycleSupport.serializeDownloadQueue();
@@ -1289,30 +1414,13 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		{
 			scrobbler.scrobble(this, currentPlaying, true);
 		}
-
-		if (playerState == STARTED && positionCache == null)
-		{
-			positionCache = new PositionCache();
-			Thread thread = new Thread(positionCache);
-			thread.start();
-		}
-		else if (playerState != STARTED && positionCache != null)
-		{
-			positionCache.stop();
-			positionCache = null;
-		}
 	}
 
 	private void setPlayerStateCompleted()
 	{
 		Log.i(TAG, String.format("%s -> %s (%s)", this.playerState.name(), PlayerState.COMPLETED, currentPlaying));
 		this.playerState = PlayerState.COMPLETED;
-
-		if (positionCache != null)
-		{
-			positionCache.stop();
-			positionCache = null;
-		}
+		positionTracker.setPlaying(false);
 
 		scrobbler.scrobble(this, currentPlaying, true);
 	}
@@ -1435,11 +1543,8 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 			reset();
 
-			// Cancel current download, if necessary.
-			if (currentDownloading != null)
-			{
-				currentDownloading.cancelDownload();
-			}
+			// Cancel current downloads, if necessary.
+			downloadScheduler.cancelAll();
 		}
 		else
 		{
@@ -1563,6 +1668,13 @@ public class DownloadServiceImpl extends Service implements DownloadService
 
 			Bitmap lockScreenBitmap = FileUtil.getAlbumArtBitmap(this, currentSong, Util.getMinDisplayMetric(this), true);
 
+			// The remote control client may recycle the bitmap it is given, and the album art is shared with the
+			// image cache, so it gets a copy of its own.
+			if (lockScreenBitmap != null)
+			{
+				lockScreenBitmap = lockScreenBitmap.copy(lockScreenBitmap.getConfig(), false);
+			}
+
 			String artist = currentSong.getArtist();
 			String album = currentSong.getAlbum();
 			String title = currentSong.getTitle();
@@ -1678,7 +1790,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 							Log.i(TAG, String.format("Restarting player from position %d", position));
 							seekTo(position);
 						}
-						cachedPosition = position;
+						positionTracker.set(position, false);
 
 						if (start)
 						{
@@ -1782,7 +1894,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			public boolean onError(MediaPlayer mediaPlayer, int what, int extra)
 			{
 				Log.w(TAG, String.format("Error on playing file (%d, %d): %s", what, extra, downloadFile));
-				int pos = cachedPosition;
+				int pos = positionTracker.get();
 				reset();
 				downloadFile.setPlaying(false);
 				doPlay(downloadFile, pos, true);
@@ -1803,7 +1915,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 				// and allow the device to go to sleep.
 				wakeLock.acquire(60000);
 
-				int pos = cachedPosition;
+				int pos = syncPlayerPosition();
 				Log.i(TAG, String.format("Ending position %d of %d", pos, duration));
 
 				if (!isPartial || (downloadFile.isWorkDone() && (Math.abs(duration - pos) < 1000)))
@@ -1865,21 +1977,26 @@ public class DownloadServiceImpl extends Service implements DownloadService
 	@Override
 	public synchronized void swap(boolean mainList, int from, int to)
 	{
-		List<DownloadFile> list = mainList ? downloadList : backgroundDownloadList;
-		int max = list.size();
+		DownloadList list = mainList ? downloadList : backgroundDownloadList;
+		int currentPlayingIndex;
+		DownloadFile movedSong;
 
-		if (to >= max)
+		synchronized (queueLock)
 		{
-			to = max - 1;
-		}
-		else if (to < 0)
-		{
-			to = 0;
-		}
+			int max = list.size();
 
-		int currentPlayingIndex = getCurrentPlayingIndex();
-		DownloadFile movedSong = list.remove(from);
-		list.add(to, movedSong);
+			if (to >= max)
+			{
+				to = max - 1;
+			}
+			else if (to < 0)
+			{
+				to = 0;
+			}
+
+			currentPlayingIndex = getCurrentPlayingIndex();
+			movedSong = list.move(from, to);
+		}
 
 		if (jukeboxEnabled && mainList)
 		{
@@ -1915,7 +2032,45 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		setNextPlayerState(IDLE);
 	}
 
-	protected synchronized void checkDownloads()
+	/**
+	 * Asks the download checker thread to bring the downloads in line with the playlist. Requests made while a
+	 * check is waiting to run are merged into it.
+	 */
+	protected void checkDownloads()
+	{
+		if (!downloadCheckPending.compareAndSet(false, true))
+		{
+			return;
+		}
+
+		try
+		{
+			downloadChecker.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					downloadCheckPending.set(false);
+
+					try
+					{
+						doCheckDownloads();
+					}
+					catch (Throwable x)
+					{
+						Log.e(TAG, "checkDownloads() failed.", x);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException x)
+		{
+			// The service is being destroyed.
+			downloadCheckPending.set(false);
+		}
+	}
+
+	private void doCheckDownloads()
 	{
 		if (!Util.isExternalStoragePresent() || !lifecycleSupport.isExternalStorageAvailable())
 		{
@@ -1932,95 +2087,109 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			return;
 		}
 
-		if (downloadList.isEmpty() && backgroundDownloadList.isEmpty())
-		{
-			return;
-		}
+		DownloadFile currentPlaying = this.currentPlaying;
+		List<DownloadFile> songs;
+		List<DownloadFile> backgroundDownloads;
+		int start;
 
-		// Need to download current playing?
-		if (currentPlaying != null && currentPlaying != currentDownloading && !currentPlaying.isWorkDone())
+		synchronized (queueLock)
 		{
-			// Cancel current download, if necessary.
-			if (currentDownloading != null)
+			if (downloadList.isEmpty() && backgroundDownloadList.isEmpty())
 			{
-				currentDownloading.cancelDownload();
+				return;
 			}
 
-			currentDownloading = currentPlaying;
-			currentDownloading.download();
-			cleanupCandidates.add(currentDownloading);
+			songs = new ArrayList<DownloadFile>(downloadList);
+			backgroundDownloads = new ArrayList<DownloadFile>(backgroundDownloadList);
+			start = currentPlaying == null ? 0 : Math.max(0, downloadList.indexOf(currentPlaying));
 		}
 
-		// Find a suitable target for download.
-		else
+		Map<DownloadFile, DownloadScheduler.Priority> wanted = new LinkedHashMap<DownloadFile, DownloadScheduler.Priority>();
+		DownloadFile next = null;
+
+		// Need to download current playing?
+		if (currentPlaying != null && !currentPlaying.isWorkDone())
 		{
-			if (currentDownloading == null || currentDownloading.isWorkDone() || currentDownloading.isFailed() && (!downloadList.isEmpty() || !backgroundDownloadList.isEmpty()))
-			{
-				currentDownloading = null;
-				int n = size();
+			wanted.put(currentPlaying, DownloadScheduler.Priority.CURRENT);
+		}
 
-				int preloaded = 0;
+		// Then the songs after it in the playlist, as far as the preload count allows.
+		int n = songs.size();
+		int preloaded = 0;
+		DownloadFile following = currentPlaying == null || n < 2 ? null : songs.get((start + 1) % n);
+		int preloadCount = downloadPlanner.getPreloadCount(currentPlaying, following, getPlayerPosition());
 
-				if (n != 0)
+		if (n != 0)
+		{
+			int i = start;
+			do
+			{
+				DownloadFile downloadFile = songs.get(i);
+				if (downloadFile == currentPlaying)
 				{
-					int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
-					if (start == -1)
-					{
-						start = 0;
-					}
-					int i = start;
-					do
+					// Already handled above.
+				}
+				else if (!downloadFile.isWorkDone())
+				{
+					if (downloadFile.shouldSave() || preloaded < preloadCount)
 					{
-						DownloadFile downloadFile = downloadList.get(i);
-						if (!downloadFile.isWorkDone())
-						{
-							if (downloadFile.shouldSave() || preloaded < Util.getPreloadCount(this))
-							{
-								currentDownloading = downloadFile;
-								currentDownloading.download();
-								cleanupCandidates.add(currentDownloading);
-								if (i == (start + 1))
-								{
-									setNextPlayerState(DOWNLOADING);
-								}
-								break;
-							}
-						}
-						else if (currentPlaying != downloadFile)
+						if (currentPlaying != null && i == (start + 1) % n)
 						{
-							preloaded++;
+							next = downloadFile;
 						}
 
-						i = (i + 1) % n;
-					} while (i != start);
+						wanted.put(downloadFile, downloadFile == next ? DownloadScheduler.Priority.NEXT : DownloadScheduler.Priority.PRELOAD);
+						preloaded++;
+					}
+				}
+				else
+				{
+					preloaded++;
 				}
 
-				if ((preloaded + 1 == n || preloaded >= Util.getPreloadCount(this) || downloadList.isEmpty()) && !backgroundDownloadList.isEmpty())
+				i = (i + 1) % n;
+			} while (i != start);
+		}
+
+		// Pinned songs in the background list use whatever workers are left.
+		List<DownloadFile> finished = new ArrayList<DownloadFile>();
+
+		for (DownloadFile downloadFile : backgroundDownloads)
+		{
+			if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
+			{
+				if (Util.getShouldScanMedia(this))
 				{
-					for (int i = 0; i < backgroundDownloadList.size(); i++)
-					{
-						DownloadFile downloadFile = backgroundDownloadList.get(i);
-						if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved()))
-						{
-							if (Util.getShouldScanMedia(this))
-							{
-								Util.scanMedia(this, downloadFile.getCompleteFile());
-							}
-
-							// Don't need to keep list like active song list
-							backgroundDownloadList.remove(i);
-							revision++;
-							i--;
-						}
-						else
-						{
-							currentDownloading = downloadFile;
-							currentDownloading.download();
-							cleanupCandidates.add(currentDownloading);
-							break;
-						}
-					}
+					Util.scanMedia(this, downloadFile.getCompleteFile());
 				}
+
+				finished.add(downloadFile);
+			}
+			else if (!downloadFile.isWorkDone() && !wanted.containsKey(downloadFile))
+			{
+				wanted.put(downloadFile, DownloadScheduler.Priority.BACKGROUND);
+			}
+		}
+
+		if (!finished.isEmpty())
+		{
+			// Don't need to keep list like active song list
+			synchronized (queueLock)
+			{
+				backgroundDownloadList.removeAll(finished);
+				revision.incrementAndGet();
+			}
+		}
+
+		downloadScheduler.setWorkers(Util.getParallelDownloads(this));
+
+		for (DownloadFile downloadFile : downloadScheduler.schedule(wanted))
+		{
+			cleanupCandidates.add(downloadFile);
+
+			if (downloadFile == next)
+			{
+				setNextPlayerState(DOWNLOADING);
 			}
 		}
 
@@ -2028,23 +2197,34 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		cleanup();
 	}
 
-	private synchronized void checkShufflePlay()
+	private void checkShufflePlay()
 	{
 		// Get users desired random playlist size
 		int listSize = Util.getMaxSongs(this);
-		boolean wasEmpty = downloadList.isEmpty();
+		boolean wasEmpty;
+		int size;
+
+		synchronized (queueLock)
+		{
+			wasEmpty = downloadList.isEmpty();
+			size = downloadList.size();
+		}
 
-		long revisionBefore = revision;
+		long revisionBefore = revision.get();
 
 		// First, ensure that list is at least 20 songs long.
-		int size = size();
 		if (size < listSize)
 		{
-			for (MusicDirectory.Entry song : shufflePlayBuffer.get(listSize - size))
+			List<MusicDirectory.Entry> songs = shufflePlayBuffer.get(listSize - size);
+
+			synchronized (queueLock)
 			{
-				DownloadFile downloadFile = new DownloadFile(this, song, false);
-				downloadList.add(downloadFile);
-				revision++;
+				for (MusicDirectory.Entry song : songs)
+				{
+					DownloadFile downloadFile = new DownloadFile(this, song, false);
+					downloadList.add(downloadFile);
+					revision.incrementAndGet();
+				}
 			}
 		}
 
@@ -2054,39 +2234,81 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		if (currIndex > 4)
 		{
 			int songsToShift = currIndex - 2;
-			for (MusicDirectory.Entry song : shufflePlayBuffer.get(songsToShift))
+			List<MusicDirectory.Entry> songs = shufflePlayBuffer.get(songsToShift);
+
+			synchronized (queueLock)
 			{
-				downloadList.add(new DownloadFile(this, song, false));
-				downloadList.get(0).cancelDownload();
-				downloadList.remove(0);
-				revision++;
+				for (MusicDirectory.Entry song : songs)
+				{
+					downloadList.add(new DownloadFile(this, song, false));
+					downloadList.remove(0).cancelDownload();
+					revision.incrementAndGet();
+				}
 			}
 		}
 
-		if (revisionBefore != revision)
+		if (revisionBefore != revision.get())
 		{
 			updateJukeboxPlaylist();
 		}
 
-		if (wasEmpty && !downloadList.isEmpty())
+		if (wasEmpty && size() > 0)
 		{
 			play(0);
 		}
 	}
 
+	/**
+	 * Returns the bit rate to start downloading the song at, from the settings and the measured download rate.
+	 */
+	int getMaxBitRate(DownloadFile downloadFile)
+	{
+		double secondsUntilNeeded = 0;
+
+		synchronized (queueLock)
+		{
+			int index = downloadList.indexOf(downloadFile);
+			int current = downloadList.indexOf(currentPlaying);
+
+			for (int i = current; current >= 0 && i < index; i++)
+			{
+				Integer duration = downloadList.get(i).getSong().getDuration();
+				secondsUntilNeeded += duration == null ? 0 : duration;
+			}
+		}
+
+		if (secondsUntilNeeded > 0)
+		{
+			secondsUntilNeeded -= getPlayerPosition() / 1000.0;
+		}
+
+		return bitRateController.getMaxBitRate(downloadFile, secondsUntilNeeded);
+	}
+
+	/**
+	 * Returns the bit rate the song would be downloaded at now, without affecting the choice of later downloads.
+	 */
+	int peekMaxBitRate(DownloadFile downloadFile)
+	{
+		return bitRateController.peekMaxBitRate(downloadFile);
+	}
+
 	@Override
 	public long getDownloadListUpdateRevision()
 	{
-		return revision;
+		return revision.get();
 	}
 
-	private synchronized void cleanup()
+	/**
+	 * Only called on the download checker thread, which owns the cleanup candidates.
+	 */
+	private void cleanup()
 	{
 		Iterator<DownloadFile> iterator = cleanupCandidates.iterator();
 		while (iterator.hasNext())
 		{
 			DownloadFile downloadFile = iterator.next();
-			if (downloadFile != currentPlaying && downloadFile != currentDownloading)
+			if (downloadFile != currentPlaying && !downloadScheduler.isScheduled(downloadFile))
 			{
 				if (downloadFile.cleanup())
 				{
@@ -2109,7 +2331,7 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			this.position = position;
 			partialFile = downloadFile.getPartialFile();
 
-			long bufferLength = Util.getBufferLength(DownloadServiceImpl.this);
+			long bufferLength = downloadPlanner.getBufferLength(downloadFile, position);
 
 			if (bufferLength == 0)
 			{
@@ -2131,17 +2353,55 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		{
 			setPlayerState(DOWNLOADING);
 
-			while (!bufferComplete() && !Util.isOffline(DownloadServiceImpl.this))
+			DownloadProgressBus.Listener listener = new DownloadProgressWaiter(this, downloadFile, expectedFileSize);
+			DownloadProgressBus.register(listener);
+
+			try
 			{
-				Util.sleepQuietly(1000L);
-				if (isCancelled())
+				if (!waitForBuffer(5000L))
 				{
 					return;
 				}
 			}
+			finally
+			{
+				DownloadProgressBus.unregister(listener);
+			}
+
 			doPlay(downloadFile, position, true);
 		}
 
+		/**
+		 * Waits until the buffer is complete or the app is offline. Progress events wake the task up right away,
+		 * the timeout is only there to notice going offline.
+		 *
+		 * @return False if the task was cancelled.
+		 */
+		private boolean waitForBuffer(long timeoutMillis)
+		{
+			synchronized (this)
+			{
+				while (!bufferComplete() && !Util.isOffline(DownloadServiceImpl.this))
+				{
+					if (isCancelled())
+					{
+						return false;
+					}
+
+					try
+					{
+						wait(timeoutMillis);
+					}
+					catch (InterruptedException x)
+					{
+						return false;
+					}
+				}
+			}
+
+			return !isCancelled();
+		}
+
 		private boolean bufferComplete()
 		{
 			boolean completeFileAvailable = downloadFile.isWorkDone();
@@ -2152,45 +2412,16 @@ public class DownloadServiceImpl extends Service implements DownloadService
 		}
 
 		@Override
-		public String toString()
+		public void cancel()
 		{
-			return String.format("BufferTask (%s)", downloadFile);
-		}
-	}
-
-	private class PositionCache implements Runnable
-	{
-		boolean isRunning = true;
-
-		public void stop()
-		{
-			isRunning = false;
+			super.cancel();
+			DownloadProgressWaiter.wake(this);
 		}
 
 		@Override
-		public void run()
+		public String toString()
 		{
-			Thread.currentThread().setName("PositionCache");
-
-			// Stop checking position before the song reaches completion
-			while (isRunning)
-			{
-				try
-				{
-					if (mediaPlayer != null && playerState == STARTED)
-					{
-						cachedPosition = mediaPlayer.getCurrentPosition();
-					}
-
-					Util.sleepQuietly(25L);
-				}
-				catch (Exception e)
-				{
-					Log.w(TAG, "Crashed getting current position", e);
-					isRunning = false;
-					positionCache = null;
-				}
-			}
+			return String.format("BufferTask (%s)", downloadFile);
 		}
 	}
 
@@ -2222,15 +2453,42 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			// Do an initial sleep so this prepare can't compete with main prepare
 			Util.sleepQuietly(5000L);
 
-			while (!bufferComplete())
-			{
-				Util.sleepQuietly(5000L);
+			// Completion of the download wakes the task up. The player state isn't published, so check that
+			// every few seconds.
+			DownloadProgressBus.Listener listener = new DownloadProgressWaiter(this, downloadFile, Long.MAX_VALUE);
+			DownloadProgressBus.register(listener);
 
-				if (isCancelled())
+			try
+			{
+				synchronized (this)
 				{
-					return;
+					while (!bufferComplete())
+					{
+						if (isCancelled())
+						{
+							return;
+						}
+
+						try
+						{
+							wait(5000L);
+						}
+						catch (InterruptedException x)
+						{
+							return;
+						}
+					}
 				}
 			}
+			finally
+			{
+				DownloadProgressBus.unregister(listener);
+			}
+
+			if (isCancelled())
+			{
+				return;
+			}
 
 			// Start the setup of the next media player
 			mediaPlayerHandler.post(new Runnable()
@@ -2250,10 +2508,61 @@ public class DownloadServiceImpl extends Service implements DownloadService
 			return completeFileAvailable && (playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED);
 		}
 
+		@Override
+		public void cancel()
+		{
+			super.cancel();
+			DownloadProgressWaiter.wake(this);
+		}
+
 		@Override
 		public String toString()
 		{
 			return String.format("CheckCompletionTask (%s)", downloadFile);
 		}
 	}
+
+	/**
+	 * Wakes up a task waiting on the given monitor when a song has been downloaded up to a given length, or
+	 * when its download stops.
+	 */
+	private static class DownloadProgressWaiter implements DownloadProgressBus.Listener
+	{
+		private final Object monitor;
+		private final DownloadFile downloadFile;
+		private final long length;
+
+		public DownloadProgressWaiter(Object monitor, DownloadFile downloadFile, long length)
+		{
+			this.monitor = monitor;
+			this.downloadFile = downloadFile;
+			this.length = length;
+		}
+
+		@Override
+		public void onProgress(DownloadFile downloadFile, long bytes)
+		{
+			if (downloadFile == this.downloadFile && bytes >= length)
+			{
+				wake(monitor);
+			}
+		}
+
+		@Override
+		public void onStateChanged(DownloadFile downloadFile, DownloadProgressBus.State state)
+		{
+			if (downloadFile == this.downloadFile && state != DownloadProgressBus.State.STARTED)
+			{
+				wake(monitor);
+			}
+		}
+
+		public static void wake(Object monitor)
+		{
+			synchronized (monitor)
+			{
+				monitor.notifyAll();
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import com.thejoshwa.ultrasonic.androidapp.util.BoundedCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the download state of songs, so that song lists can show it without touching the file system.
+ * <p/>
+ * The state of a song is read from disk the first time it is asked for, and from then on kept up to date by the
+ * events of {@link DownloadProgressBus} and by {@link DownloadFile} when it moves or deletes files itself. Anything
+ * else that deletes downloaded files, such as the cache cleaner, must call {@link #clear}.
+ */
+public final class DownloadStateIndex
+{
+	private static final BoundedCache<String, Status> STATES = new BoundedCache<String, Status>(2000);
+
+	// Changed whenever states are forgotten, so that a state read from disk before that isn't kept. States read
+	// from disk never replace one that an event put in meanwhile either, as the event's is newer.
+	private static final AtomicLong VERSION = new AtomicLong();
+
+	public enum State
+	{
+		NONE,
+		DOWNLOADING,
+		COMPLETE,
+		SAVED
+	}
+
+	static
+	{
+		DownloadProgressBus.register(new DownloadProgressBus.Listener()
+		{
+			@Override
+			public void onProgress(DownloadFile downloadFile, long bytes)
+			{
+				put(downloadFile, new Status(State.DOWNLOADING, bytes));
+			}
+
+			@Override
+			public void onStateChanged(DownloadFile downloadFile, DownloadProgressBus.State state)
+			{
+				// The download task is still running when it publishes that it stopped.
+				put(downloadFile, read(downloadFile, state == DownloadProgressBus.State.STARTED));
+			}
+		});
+	}
+
+	private DownloadStateIndex()
+	{
+	}
+
+	public static Status get(DownloadFile downloadFile)
+	{
+		Status status = STATES.get(getKey(downloadFile));
+
+		if (status == null)
+		{
+			long version = VERSION.get();
+			status = read(downloadFile, downloadFile.isDownloading() && !downloadFile.isDownloadCancelled());
+
+			if (VERSION.get() == version)
+			{
+				Status newer = STATES.putIfAbsent(getKey(downloadFile), status);
+
+				if (newer != null)
+				{
+					status = newer;
+				}
+			}
+		}
+
+		return status;
+	}
+
+	/**
+	 * Reads the state of the song from disk again.
+	 */
+	public static void update(DownloadFile downloadFile)
+	{
+		VERSION.incrementAndGet();
+		STATES.remove(getKey(downloadFile));
+	}
+
+	/**
+	 * Forgets the state of all songs.
+	 */
+	public static void clear()
+	{
+		VERSION.incrementAndGet();
+		STATES.clear();
+	}
+
+	private static void put(DownloadFile downloadFile, Status status)
+	{
+		STATES.put(getKey(downloadFile), status);
+	}
+
+	private static Status read(DownloadFile downloadFile, boolean downloading)
+	{
+		if (downloadFile.isWorkDone())
+		{
+			return new Status(downloadFile.isSaved() ? State.SAVED : State.COMPLETE, 0);
+		}
+
+		long length = downloadFile.getPartialFile().length();
+
+		if (downloading && length > 0)
+		{
+			return new Status(State.DOWNLOADING, length);
+		}
+
+		return new Status(State.NONE, 0);
+	}
+
+	private static String getKey(DownloadFile downloadFile)
+	{
+		return downloadFile.getSong().getId();
+	}
+
+	public static final class Status
+	{
+		private final State state;
+		private final long bytes;
+
+		public Status(State state, long bytes)
+		{
+			this.state = state;
+			this.bytes = bytes;
+		}
+
+		public State getState()
+		{
+			return state;
+		}
+
+		/**
+		 * Returns how much of the song has been downloaded, while it is being downloaded.
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		public boolean isDone()
+		{
+			return state == State.COMPLETE || state == State.SAVED;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends HTTP requests to the server. Implementations are shared by all threads, so everything that differs from
+ * one request to the next, such as timeouts and credentials, is part of the {@link Request}.
+ */
+public interface HttpTransport
+{
+	/**
+	 * Sends the request and returns the response once its headers have arrived, whatever the status code.
+	 *
+	 * @param task If not null, cancelling it aborts the request, and the response if it has arrived.
+	 */
+	Response execute(Request request, CancellableTask task) throws IOException;
+
+	public static class Request
+	{
+		private final String url;
+		private final List<String> parameterNames = new ArrayList<String>();
+		private final List<String> parameterValues = new ArrayList<String>();
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private int connectTimeout;
+		private int readTimeout;
+		private String username;
+		private String password;
+
+		public Request(String url)
+		{
+			this.url = url;
+		}
+
+		public String getUrl()
+		{
+			return url;
+		}
+
+		/**
+		 * Adds a parameter to send form encoded in the request body.
+		 */
+		public void addParameter(String name, Object value)
+		{
+			parameterNames.add(name);
+			parameterValues.add(String.valueOf(value));
+		}
+
+		public List<String> getParameterNames()
+		{
+			return parameterNames;
+		}
+
+		public List<String> getParameterValues()
+		{
+			return parameterValues;
+		}
+
+		public void setHeader(String name, String value)
+		{
+			headers.put(name, value);
+		}
+
+		public Map<String, String> getHeaders()
+		{
+			return headers;
+		}
+
+		public int getConnectTimeout()
+		{
+			return connectTimeout;
+		}
+
+		public void setConnectTimeout(int connectTimeout)
+		{
+			this.connectTimeout = connectTimeout;
+		}
+
+		public int getReadTimeout()
+		{
+			return readTimeout;
+		}
+
+		public void setReadTimeout(int readTimeout)
+		{
+			this.readTimeout = readTimeout;
+		}
+
+		public String getUsername()
+		{
+			return username;
+		}
+
+		public String getPassword()
+		{
+			return password;
+		}
+
+		/**
+		 * Sets the credentials to answer an authentication challenge with, such as one from a proxy in front of
+		 * the server.
+		 */
+		public void setCredentials(String username, String password)
+		{
+			this.username = username;
+			this.password = password;
+		}
+	}
+
+	public static interface Response
+	{
+		int getStatusCode();
+
+		/**
+		 * Returns the status code and reason phrase, for messages.
+		 */
+		String getStatusLine();
+
+		/**
+		 * Returns the value of the header, or null if the response doesn't have it.
+		 */
+		String getHeader(String name);
+
+		String getContentType();
+
+		/**
+		 * Returns the URL that finally answered the request, after any redirects.
+		 */
+		String getUrl();
+
+		/**
+		 * Returns the body of the response. Closing the stream lets the connection be used again once the body
+		 * has been read to the end.
+		 */
+		InputStream getContent() throws IOException;
+
+		/**
+		 * Closes the connection without reading the rest of the body.
+		 */
+		void abort();
+	}
+}
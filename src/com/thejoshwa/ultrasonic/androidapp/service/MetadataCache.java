@@ -0,0 +1,419 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+import com.thejoshwa.ultrasonic.androidapp.util.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Persistent second-level cache for music directories, albums and artists, so that
+ * recently browsed directories survive a restart of the app.
+ * <p/>
+ * Directories are stored in an SQLite database, keyed by server, type and id, in a
+ * compact binary encoding. Entries older than {@link #TTL_MILLIS} are purged when the
+ * database is opened, and the least recently updated entries are evicted when the
+ * total size exceeds {@link #MAX_SIZE_BYTES}.
+ */
+public class MetadataCache extends SQLiteOpenHelper
+{
+	private static final String TAG = MetadataCache.class.getSimpleName();
+
+	public static final String TYPE_MUSIC_DIRECTORY = "directory";
+	public static final String TYPE_ARTIST = "artist";
+	public static final String TYPE_ALBUM = "album";
+
+	private static final String DATABASE_NAME = "metadata.db";
+	private static final int DATABASE_VERSION = 1;
+	private static final int FORMAT_VERSION = 1;
+
+	private static final long TTL_MILLIS = 7L * 24L * 60L * 60L * 1000L;
+	private static final long MAX_SIZE_BYTES = 8L * 1024L * 1024L;
+
+	private static final String TABLE = "directories";
+	private static final String COLUMN_SERVER = "server";
+	private static final String COLUMN_TYPE = "type";
+	private static final String COLUMN_ID = "id";
+	private static final String COLUMN_UPDATED = "updated";
+	private static final String COLUMN_SIZE = "size";
+	private static final String COLUMN_DATA = "data";
+	private static final String KEY_SELECTION = COLUMN_SERVER + "=? AND " + COLUMN_TYPE + "=? AND " + COLUMN_ID + "=?";
+
+	private long totalSize = -1;
+
+	public MetadataCache(Context context)
+	{
+		super(context.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db)
+	{
+		db.execSQL("CREATE TABLE " + TABLE + " (" +
+				COLUMN_SERVER + " TEXT NOT NULL, " +
+				COLUMN_TYPE + " TEXT NOT NULL, " +
+				COLUMN_ID + " TEXT NOT NULL, " +
+				COLUMN_UPDATED + " INTEGER NOT NULL, " +
+				COLUMN_SIZE + " INTEGER NOT NULL, " +
+				COLUMN_DATA + " BLOB NOT NULL, " +
+				"PRIMARY KEY (" + COLUMN_SERVER + ", " + COLUMN_TYPE + ", " + COLUMN_ID + "))");
+		db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_UPDATED + " ON " + TABLE + " (" + COLUMN_UPDATED + ")");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
+	{
+		// It's only a cache, start over.
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		onCreate(db);
+	}
+
+	@Override
+	public void onOpen(SQLiteDatabase db)
+	{
+		super.onOpen(db);
+
+		if (!db.isReadOnly())
+		{
+			int deleted = db.delete(TABLE, COLUMN_UPDATED + "<?", new String[]{String.valueOf(System.currentTimeMillis() - TTL_MILLIS)});
+			Log.i(TAG, String.format("Purged %d expired directories", deleted));
+		}
+	}
+
+	/**
+	 * Returns the cached directory together with the time it was fetched from the server,
+	 * or <code>null</code> if it is not cached.
+	 */
+	public Pair<MusicDirectory, Long> get(String server, String type, String id)
+	{
+		if (server == null || id == null)
+		{
+			return null;
+		}
+
+		Cursor cursor = null;
+
+		try
+		{
+			cursor = getReadableDatabase().query(TABLE, new String[]{COLUMN_UPDATED, COLUMN_DATA}, KEY_SELECTION, new String[]{server, type, id}, null, null, null);
+
+			if (!cursor.moveToFirst())
+			{
+				return null;
+			}
+
+			long updated = cursor.getLong(0);
+
+			if (System.currentTimeMillis() - updated > TTL_MILLIS)
+			{
+				return null;
+			}
+
+			return new Pair<MusicDirectory, Long>(decode(cursor.getBlob(1)), updated);
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, String.format("Failed to read cached %s %s", type, id), x);
+			return null;
+		}
+		finally
+		{
+			if (cursor != null)
+			{
+				cursor.close();
+			}
+		}
+	}
+
+	public void put(String server, String type, String id, MusicDirectory directory)
+	{
+		if (server == null || id == null || directory == null)
+		{
+			return;
+		}
+
+		try
+		{
+			byte[] data = encode(directory);
+
+			ContentValues values = new ContentValues();
+			values.put(COLUMN_SERVER, server);
+			values.put(COLUMN_TYPE, type);
+			values.put(COLUMN_ID, id);
+			values.put(COLUMN_UPDATED, System.currentTimeMillis());
+			values.put(COLUMN_SIZE, data.length);
+			values.put(COLUMN_DATA, data);
+
+			SQLiteDatabase db = getWritableDatabase();
+
+			synchronized (this)
+			{
+				long size = getTotalSize(db) - getSize(db, server, type, id);
+				db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+				totalSize = size + data.length;
+				trim(db);
+			}
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, String.format("Failed to cache %s %s", type, id), x);
+		}
+	}
+
+	public void remove(String server, String type, String id)
+	{
+		if (server == null || id == null)
+		{
+			return;
+		}
+
+		try
+		{
+			SQLiteDatabase db = getWritableDatabase();
+
+			synchronized (this)
+			{
+				long size = getTotalSize(db) - getSize(db, server, type, id);
+				db.delete(TABLE, KEY_SELECTION, new String[]{server, type, id});
+				totalSize = size;
+			}
+		}
+		catch (Exception x)
+		{
+			Log.w(TAG, String.format("Failed to remove cached %s %s", type, id), x);
+		}
+	}
+
+	private static long getSize(SQLiteDatabase db, String server, String type, String id)
+	{
+		Cursor cursor = db.query(TABLE, new String[]{COLUMN_SIZE}, KEY_SELECTION, new String[]{server, type, id}, null, null, null);
+
+		try
+		{
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	private long getTotalSize(SQLiteDatabase db)
+	{
+		if (totalSize < 0)
+		{
+			Cursor cursor = db.rawQuery("SELECT SUM(" + COLUMN_SIZE + ") FROM " + TABLE, null);
+
+			try
+			{
+				totalSize = cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+			}
+			finally
+			{
+				cursor.close();
+			}
+		}
+
+		return totalSize;
+	}
+
+	private void trim(SQLiteDatabase db)
+	{
+		if (totalSize <= MAX_SIZE_BYTES)
+		{
+			return;
+		}
+
+		Cursor cursor = db.query(TABLE, new String[]{COLUMN_SERVER, COLUMN_TYPE, COLUMN_ID, COLUMN_SIZE}, null, null, null, null, COLUMN_UPDATED);
+		int deleted = 0;
+
+		try
+		{
+			while (totalSize > MAX_SIZE_BYTES && cursor.moveToNext())
+			{
+				db.delete(TABLE, KEY_SELECTION, new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+				totalSize -= cursor.getLong(3);
+				deleted++;
+			}
+		}
+		finally
+		{
+			cursor.close();
+		}
+
+		Log.i(TAG, String.format("Evicted %d directories, cache size is now %d bytes", deleted, totalSize));
+	}
+
+	private static byte[] encode(MusicDirectory directory) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		List<MusicDirectory.Entry> children = directory.getChildren();
+
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, directory.getName());
+		out.writeInt(children.size());
+
+		for (MusicDirectory.Entry entry : children)
+		{
+			writeString(out, entry.getId());
+			writeString(out, entry.getParent());
+			out.writeBoolean(entry.isDirectory());
+			writeString(out, entry.getTitle());
+			writeString(out, entry.getAlbum());
+			writeString(out, entry.getAlbumId());
+			writeString(out, entry.getArtist());
+			writeString(out, entry.getArtistId());
+			writeInteger(out, entry.getTrack());
+			writeInteger(out, entry.getYear());
+			writeString(out, entry.getGenre());
+			writeString(out, entry.getContentType());
+			writeString(out, entry.getSuffix());
+			writeString(out, entry.getTranscodedContentType());
+			writeString(out, entry.getTranscodedSuffix());
+			writeString(out, entry.getCoverArt());
+			writeLong(out, entry.getSize());
+			writeLong(out, entry.getSongCount());
+			writeInteger(out, entry.getDuration());
+			writeInteger(out, entry.getBitRate());
+			writeString(out, entry.getPath());
+			out.writeBoolean(entry.isVideo());
+			out.writeBoolean(entry.getStarred());
+			writeInteger(out, entry.getDiscNumber());
+			writeString(out, entry.getType());
+			writeLong(out, entry.getCreated() == null ? null : entry.getCreated().getTime());
+			out.writeInt(entry.getCloseness());
+			out.writeInt(entry.getBookmarkPosition());
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static MusicDirectory decode(byte[] data) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+		int version = in.readInt();
+		if (version != FORMAT_VERSION)
+		{
+			throw new IOException(String.format("Unsupported format version %d", version));
+		}
+
+		MusicDirectory directory = new MusicDirectory();
+		directory.setName(readString(in));
+		int count = in.readInt();
+
+		for (int i = 0; i < count; i++)
+		{
+			MusicDirectory.Entry entry = new MusicDirectory.Entry();
+			entry.setId(readString(in));
+			entry.setParent(readString(in));
+			entry.setIsDirectory(in.readBoolean());
+			entry.setTitle(readString(in));
+			entry.setAlbum(readString(in));
+			entry.setAlbumId(readString(in));
+			entry.setArtist(readString(in));
+			entry.setArtistId(readString(in));
+			entry.setTrack(readInteger(in));
+			entry.setYear(readInteger(in));
+			entry.setGenre(readString(in));
+			entry.setContentType(readString(in));
+			entry.setSuffix(readString(in));
+			entry.setTranscodedContentType(readString(in));
+			entry.setTranscodedSuffix(readString(in));
+			entry.setCoverArt(readString(in));
+			entry.setSize(readLong(in));
+			entry.setSongCount(readLong(in));
+			entry.setDuration(readInteger(in));
+			entry.setBitRate(readInteger(in));
+			entry.setPath(readString(in));
+			entry.setIsVideo(in.readBoolean());
+			entry.setStarred(in.readBoolean());
+			entry.setDiscNumber(readInteger(in));
+			entry.setType(readString(in));
+			Long created = readLong(in);
+			entry.setCreated(created == null ? null : new Date(created));
+			entry.setCloseness(in.readInt());
+			entry.setBookmarkPosition(in.readInt());
+			directory.addChild(entry);
+		}
+
+		return directory;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+
+		if (value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeInteger(DataOutputStream out, Integer value) throws IOException
+	{
+		out.writeBoolean(value != null);
+
+		if (value != null)
+		{
+			out.writeInt(value);
+		}
+	}
+
+	private static Integer readInteger(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readInt() : null;
+	}
+
+	private static void writeLong(DataOutputStream out, Long value) throws IOException
+	{
+		out.writeBoolean(value != null);
+
+		if (value != null)
+		{
+			out.writeLong(value);
+		}
+	}
+
+	private static Long readLong(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readLong() : null;
+	}
+}
@@ -38,8 +38,6 @@ import com.thejoshwa.ultrasonic.androidapp.domain.Version;
 import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
 
-import org.apache.http.HttpResponse;
-
 import java.util.List;
 
 /**
@@ -104,7 +102,12 @@ public interface MusicService
 
 	Bitmap getCoverArt(Context context, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception;
 
-	HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception;
+	HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception;
+
+	/**
+	 * Requests only the given number of bytes, starting at the offset. A length of zero or less requests the rest of the file.
+	 */
+	HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception;
 
 	Version getLocalVersion(Context context) throws Exception;
 
@@ -28,11 +28,21 @@ import com.thejoshwa.ultrasonic.androidapp.util.Util;
  */
 public class MusicServiceFactory
 {
-	private static final MusicService REST_MUSIC_SERVICE = new CachedMusicService(new RESTMusicService());
+	private static final CachedMusicService REST_MUSIC_SERVICE = new CachedMusicService(new RESTMusicService());
 	private static final MusicService OFFLINE_MUSIC_SERVICE = new OfflineMusicService();
 
 	public static MusicService getMusicService(Context context)
 	{
 		return Util.isOffline(context) ? OFFLINE_MUSIC_SERVICE : REST_MUSIC_SERVICE;
 	}
+
+	public static void addRefreshListener(CachedMusicService.RefreshListener listener)
+	{
+		REST_MUSIC_SERVICE.addRefreshListener(listener);
+	}
+
+	public static void removeRefreshListener(CachedMusicService.RefreshListener listener)
+	{
+		REST_MUSIC_SERVICE.removeRefreshListener(listener);
+	}
 }
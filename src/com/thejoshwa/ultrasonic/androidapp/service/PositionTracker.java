@@ -0,0 +1,133 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Works out the playback position from the last known position, when it was known and how fast the song plays,
+ * so that nothing has to ask the media player all the time.
+ * <p/>
+ * The position is recorded when playback starts, pauses or seeks, and should be synced with the player again
+ * when {@link #needsSync} says so. All methods may be called from any thread.
+ * <p/>
+ * Every recorded position starts a new generation. A position read from the player is only recorded if no other
+ * position was recorded while it was being read, as it may come from before a seek or a change of song.
+ */
+public class PositionTracker
+{
+	private static final long SYNC_INTERVAL = 1000L;
+
+	private final AtomicLong generations = new AtomicLong();
+	private final AtomicReference<Anchor> anchor = new AtomicReference<Anchor>(new Anchor(0, SystemClock.elapsedRealtime(), 0.0f, 0));
+
+	/**
+	 * Records the position, and whether the song is playing from there.
+	 */
+	public void set(int position, boolean playing)
+	{
+		anchor.set(new Anchor(position, SystemClock.elapsedRealtime(), playing ? 1.0f : 0.0f, generations.incrementAndGet()));
+	}
+
+	/**
+	 * Records a new position, leaving the song playing or paused.
+	 */
+	public void seek(int position)
+	{
+		anchor.set(new Anchor(position, SystemClock.elapsedRealtime(), anchor.get().rate, generations.incrementAndGet()));
+	}
+
+	/**
+	 * Starts or stops the position from moving, from where it is now.
+	 */
+	public void setPlaying(boolean playing)
+	{
+		long now = SystemClock.elapsedRealtime();
+		anchor.set(new Anchor(anchor.get().getPosition(now), now, playing ? 1.0f : 0.0f, generations.incrementAndGet()));
+	}
+
+	/**
+	 * Returns the generation of the recorded position, to be passed to {@link #sync} with the position that is
+	 * read from the player after this.
+	 */
+	public long getGeneration()
+	{
+		return anchor.get().generation;
+	}
+
+	/**
+	 * Records the position the media player reports, unless another position was recorded since the given
+	 * generation. Returns whether the position was recorded.
+	 */
+	public boolean sync(int position, long generation)
+	{
+		while (true)
+		{
+			Anchor current = anchor.get();
+
+			if (current.generation != generation)
+			{
+				return false;
+			}
+
+			if (anchor.compareAndSet(current, new Anchor(position, SystemClock.elapsedRealtime(), current.rate, generation)))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the position is moving and was last recorded long enough ago that it may have drifted.
+	 */
+	public boolean needsSync()
+	{
+		Anchor anchor = this.anchor.get();
+		return anchor.rate != 0.0f && SystemClock.elapsedRealtime() - anchor.time >= SYNC_INTERVAL;
+	}
+
+	public int get()
+	{
+		return anchor.get().getPosition(SystemClock.elapsedRealtime());
+	}
+
+	private static final class Anchor
+	{
+		private final int position;
+		private final long time;
+		private final float rate;
+		private final long generation;
+
+		public Anchor(int position, long time, float rate, long generation)
+		{
+			this.position = position;
+			this.time = time;
+			this.rate = rate;
+			this.generation = generation;
+		}
+
+		public int getPosition(long now)
+		{
+			return Math.max(0, position + (int) ((now - time) * rate));
+		}
+	}
+}
@@ -26,6 +26,7 @@ import android.net.NetworkInfo;
 import android.util.Log;
 
 import com.thejoshwa.ultrasonic.androidapp.R;
+import com.thejoshwa.ultrasonic.androidapp.domain.Artist;
 import com.thejoshwa.ultrasonic.androidapp.domain.Bookmark;
 import com.thejoshwa.ultrasonic.androidapp.domain.ChatMessage;
 import com.thejoshwa.ultrasonic.androidapp.domain.Genre;
@@ -66,35 +67,9 @@ import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
 import com.thejoshwa.ultrasonic.androidapp.util.Constants;
 import com.thejoshwa.ultrasonic.androidapp.util.FileUtil;
 import com.thejoshwa.ultrasonic.androidapp.util.ProgressListener;
+import com.thejoshwa.ultrasonic.androidapp.util.ThumbnailCache;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
-import org.apache.http.HttpResponse;
-import org.apache.http.NameValuePair;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.params.ConnManagerParams;
-import org.apache.http.conn.params.ConnPerRouteBean;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.conn.scheme.SocketFactory;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpContext;
-import org.apache.http.protocol.ExecutionContext;
-import org.apache.http.protocol.HttpContext;
-
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -104,14 +79,19 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.util.Arrays.asList;
 
@@ -124,7 +104,6 @@ public class RESTMusicService implements MusicService
 	private static final String TAG = RESTMusicService.class.getSimpleName();
 
 	private static final int SOCKET_CONNECT_TIMEOUT = 10 * 1000;
-	private static final int SOCKET_READ_TIMEOUT_DEFAULT = 10 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_DOWNLOAD = 30 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS = 60 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_GET_PLAYLIST = 60 * 1000;
@@ -137,59 +116,40 @@ public class RESTMusicService implements MusicService
 	 */
 	private static final String VERSION_URL = "http://subsonic.org/backend/version.view";
 
-	private static final int HTTP_REQUEST_MAX_ATTEMPTS = 5;
+	// Sending these twice would make two playlists, scrobbles and so on.
+	private static final Set<String> NON_IDEMPOTENT_METHODS = new HashSet<String>(asList("createPlaylist", "updatePlaylist", "scrobble", "addChatMessage", "createShare"));
+
 	private static final long REDIRECTION_CHECK_INTERVAL_MILLIS = 60L * 60L * 1000L;
 
-	private final DefaultHttpClient httpClient;
+	private final HttpTransport transport;
+	private final ConcurrentMap<String, Server> servers = new ConcurrentHashMap<String, Server>();
 	private long redirectionLastChecked;
 	private int redirectionNetworkType = -1;
 	private String redirectFrom;
 	private String redirectTo;
-	private final ThreadSafeClientConnManager connManager;
 
 	public RESTMusicService()
 	{
-
-		// Create and initialize default HTTP parameters
-		HttpParams params = new BasicHttpParams();
-		ConnManagerParams.setMaxTotalConnections(params, 20);
-		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(20));
-		HttpConnectionParams.setConnectionTimeout(params, SOCKET_CONNECT_TIMEOUT);
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_DEFAULT);
-
-		// Turn off stale checking.  Our connections break all the time anyway,
-		// and it's not worth it to pay the penalty of checking every time.
-		HttpConnectionParams.setStaleCheckingEnabled(params, false);
-
-		// Create and initialize scheme registry
-		SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-		schemeRegistry.register(new Scheme("https", createSSLSocketFactory(), 443));
-
-		// Create an HttpClient with the ThreadSafeClientConnManager.
-		// This connection manager must be used if more than one thread will
-		// be using the HttpClient.
-		connManager = new ThreadSafeClientConnManager(params, schemeRegistry);
-		httpClient = new DefaultHttpClient(connManager, params);
+		transport = new UrlConnectionTransport(createSSLSocketFactory(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
 	}
 
-	private static SocketFactory createSSLSocketFactory()
+	private static javax.net.ssl.SSLSocketFactory createSSLSocketFactory()
 	{
 		try
 		{
-			return new SSLSocketFactory(new TrustSelfSignedStrategy(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+			return SSLSocketFactory.createSSLContext(new TrustSelfSignedStrategy()).getSocketFactory();
 		}
 		catch (Throwable x)
 		{
 			Log.e(TAG, "Failed to create custom SSL socket factory, using default.", x);
-			return org.apache.http.conn.ssl.SSLSocketFactory.getSocketFactory();
+			return null;
 		}
 	}
 
 	@Override
 	public void ping(Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReader(context, progressListener, "ping", null);
+		Reader reader = getReader(context, progressListener, "ping", 0);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -203,7 +163,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public boolean isLicenseValid(Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReader(context, progressListener, "getLicense", null);
+		Reader reader = getReader(context, progressListener, "getLicense", 0);
 		try
 		{
 			ServerInfo serverInfo = new LicenseParser(context).parse(reader);
@@ -224,7 +184,7 @@ public class RESTMusicService implements MusicService
 			return cachedMusicFolders;
 		}
 
-		Reader reader = getReader(context, progressListener, "getMusicFolders", null);
+		Reader reader = getReader(context, progressListener, "getMusicFolders", 0);
 		try
 		{
 			List<MusicFolder> musicFolders = new MusicFoldersParser(context).parse(reader, progressListener);
@@ -255,7 +215,15 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(musicFolderId);
 		}
 
-		Reader reader = getReader(context, progressListener, "getIndexes", null, parameterNames, parameterValues);
+		// The persisted indexes are stored per server and music folder. If the server has not changed them
+		// since, it leaves out the indexes element, the parser returns null and the persisted copy is used.
+		if (cachedIndexes != null && cachedIndexes.getLastModified() > 0)
+		{
+			parameterNames.add("ifModifiedSince");
+			parameterValues.add(cachedIndexes.getLastModified());
+		}
+
+		Reader reader = getReader(context, progressListener, "getIndexes", 0, parameterNames, parameterValues);
 
 		try
 		{
@@ -266,7 +234,7 @@ public class RESTMusicService implements MusicService
 				return indexes;
 			}
 
-			return cachedIndexes != null ? cachedIndexes : new Indexes(0, null, new ArrayList<com.thejoshwa.ultrasonic.androidapp.domain.Artist>(), new ArrayList<com.thejoshwa.ultrasonic.androidapp.domain.Artist>());
+			return cachedIndexes != null ? cachedIndexes : new Indexes(0, null, new ArrayList<Artist>(), new ArrayList<Artist>());
 		}
 		finally
 		{
@@ -303,7 +271,7 @@ public class RESTMusicService implements MusicService
 			return cachedArtists;
 		}
 
-		Reader reader = getReader(context, progressListener, "getArtists", null);
+		Reader reader = getReader(context, progressListener, "getArtists", 0);
 		try
 		{
 			Indexes indexes = new IndexesParser(context).parse(reader, progressListener);
@@ -313,7 +281,7 @@ public class RESTMusicService implements MusicService
 				return indexes;
 			}
 
-			return cachedArtists != null ? cachedArtists : new Indexes(0, null, new ArrayList<com.thejoshwa.ultrasonic.androidapp.domain.Artist>(), new ArrayList<com.thejoshwa.ultrasonic.androidapp.domain.Artist>());
+			return cachedArtists != null ? cachedArtists : new Indexes(0, null, new ArrayList<Artist>(), new ArrayList<Artist>());
 		}
 		finally
 		{
@@ -383,7 +351,7 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(artistId);
 		}
 
-		Reader reader = getReader(context, progressListener, "star", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "star", 0, parameterNames, parameterValues);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -421,7 +389,7 @@ public class RESTMusicService implements MusicService
 		}
 
 
-		Reader reader = getReader(context, progressListener, "unstar", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "unstar", 0, parameterNames, parameterValues);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -435,7 +403,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReader(context, progressListener, "getMusicDirectory", null, "id", id);
+		Reader reader = getReader(context, progressListener, "getMusicDirectory", 0, "id", id);
 		try
 		{
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, false);
@@ -451,7 +419,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Artist by ID3 tag not supported.");
 
-		Reader reader = getReader(context, progressListener, "getArtist", null, "id", id);
+		Reader reader = getReader(context, progressListener, "getArtist", 0, "id", id);
 		try
 		{
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, false);
@@ -467,7 +435,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Album by ID3 tag not supported.");
 
-		Reader reader = getReader(context, progressListener, "getAlbum", null, "id", id);
+		Reader reader = getReader(context, progressListener, "getAlbum", 0, "id", id);
 		try
 		{
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, true);
@@ -499,7 +467,7 @@ public class RESTMusicService implements MusicService
 	{
 		List<String> parameterNames = asList("any", "songCount");
 		List<Object> parameterValues = Arrays.<Object>asList(criteria.getQuery(), criteria.getSongCount());
-		Reader reader = getReader(context, progressListener, "search", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "search", 0, parameterNames, parameterValues);
 		try
 		{
 			return new SearchResultParser(context).parse(reader, progressListener);
@@ -519,7 +487,7 @@ public class RESTMusicService implements MusicService
 
 		List<String> parameterNames = asList("query", "artistCount", "albumCount", "songCount");
 		List<Object> parameterValues = Arrays.<Object>asList(criteria.getQuery(), criteria.getArtistCount(), criteria.getAlbumCount(), criteria.getSongCount());
-		Reader reader = getReader(context, progressListener, "search2", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "search2", 0, parameterNames, parameterValues);
 		try
 		{
 			return new SearchResult2Parser(context).parse(reader, progressListener, false);
@@ -536,7 +504,7 @@ public class RESTMusicService implements MusicService
 
 		List<String> parameterNames = asList("query", "artistCount", "albumCount", "songCount");
 		List<Object> parameterValues = Arrays.<Object>asList(criteria.getQuery(), criteria.getArtistCount(), criteria.getAlbumCount(), criteria.getSongCount());
-		Reader reader = getReader(context, progressListener, "search3", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "search3", 0, parameterNames, parameterValues);
 		try
 		{
 			return new SearchResult2Parser(context).parse(reader, progressListener, true);
@@ -550,10 +518,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener) throws Exception
 	{
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_PLAYLIST);
-
-		Reader reader = getReader(context, progressListener, "getPlaylist", params, "id", id);
+		Reader reader = getReader(context, progressListener, "getPlaylist", SOCKET_READ_TIMEOUT_GET_PLAYLIST, "id", id);
 		try
 		{
 			MusicDirectory playlist = new PlaylistParser(context).parse(reader, progressListener);
@@ -597,7 +562,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public List<Playlist> getPlaylists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReader(context, progressListener, "getPlaylists", null);
+		Reader reader = getReader(context, progressListener, "getPlaylists", 0);
 		try
 		{
 			return new PlaylistsParser(context).parse(reader, progressListener);
@@ -630,7 +595,7 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(entry.getId());
 		}
 
-		Reader reader = getReader(context, progressListener, "createPlaylist", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "createPlaylist", 0, parameterNames, parameterValues);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -644,7 +609,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public void deletePlaylist(String id, Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReader(context, progressListener, "deletePlaylist", null, "id", id);
+		Reader reader = getReader(context, progressListener, "deletePlaylist", 0, "id", id);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -669,7 +634,7 @@ public class RESTMusicService implements MusicService
 			names.add("songIdToAdd");
 			values.add(song.getId());
 		}
-		Reader reader = getReader(context, progressListener, "updatePlaylist", null, names, values);
+		Reader reader = getReader(context, progressListener, "updatePlaylist", 0, names, values);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -693,7 +658,7 @@ public class RESTMusicService implements MusicService
 			names.add("songIndexToRemove");
 			values.add(song);
 		}
-		Reader reader = getReader(context, progressListener, "updatePlaylist", null, names, values);
+		Reader reader = getReader(context, progressListener, "updatePlaylist", 0, names, values);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -708,7 +673,7 @@ public class RESTMusicService implements MusicService
 	public void updatePlaylist(String id, String name, String comment, boolean pub, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkServerVersion(context, "1.8", "Updating playlists is not supported.");
-		Reader reader = getReader(context, progressListener, "updatePlaylist", null, asList("playlistId", "name", "comment", "public"), Arrays.<Object>asList(id, name, comment, pub));
+		Reader reader = getReader(context, progressListener, "updatePlaylist", 0, asList("playlistId", "name", "comment", "public"), Arrays.<Object>asList(id, name, comment, pub));
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -724,7 +689,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Lyrics not supported.");
 
-		Reader reader = getReader(context, progressListener, "getLyrics", null, asList("artist", "title"), Arrays.<Object>asList(artist, title));
+		Reader reader = getReader(context, progressListener, "getLyrics", 0, asList("artist", "title"), Arrays.<Object>asList(artist, title));
 		try
 		{
 			return new LyricsParser(context).parse(reader, progressListener);
@@ -740,7 +705,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.5", "Scrobbling not supported.");
 
-		Reader reader = getReader(context, progressListener, "scrobble", null, asList("id", "submission"), Arrays.<Object>asList(id, submission));
+		Reader reader = getReader(context, progressListener, "scrobble", 0, asList("id", "submission"), Arrays.<Object>asList(id, submission));
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -756,7 +721,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Album list not supported.");
 
-		Reader reader = getReader(context, progressListener, "getAlbumList", null, asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
+		Reader reader = getReader(context, progressListener, "getAlbumList", 0, asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
 		try
 		{
 			return new AlbumListParser(context).parse(reader, progressListener, false);
@@ -772,7 +737,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Album list by ID3 tag not supported.");
 
-		Reader reader = getReader(context, progressListener, "getAlbumList2", null, asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
+		Reader reader = getReader(context, progressListener, "getAlbumList2", 0, asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
 		try
 		{
 			return new AlbumListParser(context).parse(reader, progressListener, true);
@@ -788,16 +753,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Random songs not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> names = new ArrayList<String>();
 		List<Object> values = new ArrayList<Object>();
 
 		names.add("size");
 		values.add(size);
 
-		Reader reader = getReader(context, progressListener, "getRandomSongs", params, names, values);
+		Reader reader = getReader(context, progressListener, "getRandomSongs", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, names, values);
 		try
 		{
 			return new RandomSongsParser(context).parse(reader, progressListener);
@@ -813,7 +775,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Starred albums not supported.");
 
-		Reader reader = getReader(context, progressListener, "getStarred", null);
+		Reader reader = getReader(context, progressListener, "getStarred", 0);
 		try
 		{
 			return new SearchResult2Parser(context).parse(reader, progressListener, false);
@@ -829,7 +791,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Starred albums by ID3 tag not supported.");
 
-		Reader reader = getReader(context, progressListener, "getStarred2", null);
+		Reader reader = getReader(context, progressListener, "getStarred2", 0);
 		try
 		{
 			return new SearchResult2Parser(context).parse(reader, progressListener, true);
@@ -849,7 +811,7 @@ public class RESTMusicService implements MusicService
 	@Override
 	public Version getLatestVersion(Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReaderForURL(context, VERSION_URL, null, null, null, progressListener);
+		Reader reader = getReaderForURL(context, VERSION_URL, 0, null, null, progressListener);
 		try
 		{
 			return VersionParser.parse(reader);
@@ -882,84 +844,110 @@ public class RESTMusicService implements MusicService
 	@Override
 	public Bitmap getCoverArt(Context context, final MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception
 	{
-		// Synchronize on the entry so that we don't download concurrently for
-		// the same song.
 		if (entry == null)
 		{
 			return null;
 		}
 
-		synchronized (entry)
+		// Use cached file, if existing.
+		Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality);
+		boolean serverScaling = Util.isServerScalingEnabled(context);
+
+		if (bitmap == null)
 		{
-			// Use cached file, if existing.
-			Bitmap bitmap = FileUtil.getAlbumArtBitmap(context, entry, size, highQuality);
-			boolean serverScaling = Util.isServerScalingEnabled(context);
+			String url = Util.getRestUrl(context, "getCoverArt");
 
-			if (bitmap == null)
+			InputStream in = null;
+			try
 			{
-				String url = Util.getRestUrl(context, "getCoverArt");
+				List<String> parameterNames;
+				List<Object> parameterValues;
 
-				InputStream in = null;
-				try
+				if (serverScaling)
 				{
-					List<String> parameterNames;
-					List<Object> parameterValues;
+					parameterNames = asList("id", "size");
+					parameterValues = Arrays.<Object>asList(entry.getCoverArt(), size);
+				}
+				else
+				{
+					parameterNames = Collections.singletonList("id");
+					parameterValues = Arrays.<Object>asList(entry.getCoverArt());
+				}
 
-					if (serverScaling)
-					{
-						parameterNames = asList("id", "size");
-						parameterValues = Arrays.<Object>asList(entry.getCoverArt(), size);
-					}
-					else
-					{
-						parameterNames = Collections.singletonList("id");
-						parameterValues = Arrays.<Object>asList(entry.getCoverArt());
-					}
+				HttpTransport.Response response = getResponseForURL(context, url, 0, parameterNames, parameterValues, null, progressListener, null);
+				in = response.getContent();
 
-					HttpEntity entity = getEntityForURL(context, url, null, parameterNames, parameterValues, progressListener);
-					in = entity.getContent();
+				// If content type is XML, an error occurred. Get it.
+				String contentType = response.getContentType();
+				if (contentType != null && contentType.startsWith("text/xml"))
+				{
+					new ErrorParser(context).parse(new InputStreamReader(in, Constants.UTF_8));
+					return null; // Never reached.
+				}
 
-					// If content type is XML, an error occurred. Get it.
-					String contentType = Util.getContentType(entity);
-					if (contentType != null && contentType.startsWith("text/xml"))
-					{
-						new ErrorParser(context).parse(new InputStreamReader(in, Constants.UTF_8));
-						return null; // Never reached.
-					}
+				// If we aren't allowing server-side scaling, always save the file to disk because it will be unmodified
+				boolean keep = !serverScaling || saveToFile;
+				bitmap = saveAndDecode(context, in, keep ? FileUtil.getAlbumArtFile(context, entry) : null, size, highQuality);
+			}
+			finally
+			{
+				Util.close(in);
+			}
+		}
 
-					byte[] bytes = Util.toByteArray(in);
+		// Return scaled bitmap
+		return Util.scaleBitmap(bitmap, size);
+	}
 
-					// If we aren't allowing server-side scaling, always save the file to disk because it will be unmodified
-					if (!serverScaling || saveToFile)
-					{
-						OutputStream out = null;
-
-						try
-						{
-							out = new FileOutputStream(FileUtil.getAlbumArtFile(context, entry));
-							out.write(bytes);
-						}
-						finally
-						{
-							Util.close(out);
-						}
-					}
+	/**
+	 * Streams an image to disk and decodes it at the given size from there, so that the whole image is never held
+	 * in memory. The image is kept in the given file, or thrown away after decoding if the file is null.
+	 */
+	private static Bitmap saveAndDecode(Context context, InputStream in, File file, int size, boolean highQuality) throws IOException
+	{
+		// A file of its own for each download, so that downloads of the same image at different sizes don't write
+		// over each other, and a partly downloaded image is never read.
+		File partial = File.createTempFile("image", ".partial", file == null ? context.getCacheDir() : file.getParentFile());
 
-					bitmap = FileUtil.getSampledBitmap(bytes, size, highQuality);
-				}
-				finally
-				{
-					Util.close(in);
-				}
+		try
+		{
+			OutputStream out = new FileOutputStream(partial);
+
+			try
+			{
+				Util.copy(in, out);
+			}
+			finally
+			{
+				Util.close(out);
 			}
 
-			// Return scaled bitmap
-			return Util.scaleBitmap(bitmap, size);
+			if (file == null)
+			{
+				return FileUtil.getSampledBitmap(partial, size, highQuality);
+			}
+
+			if (!partial.renameTo(file))
+			{
+				throw new IOException(String.format("Failed to rename %s to %s", partial, file));
+			}
+
+			return ThumbnailCache.getBitmap(file, size, highQuality);
 		}
+		finally
+		{
+			Util.delete(partial);
+		}
+	}
+
+	@Override
+	public HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
+	{
+		return getDownloadInputStream(context, song, offset, 0, maxBitrate, task);
 	}
 
 	@Override
-	public HttpResponse getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
+	public HttpTransport.Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
 	{
 
 		String url = Util.getRestUrl(context, "stream");
@@ -967,27 +955,29 @@ public class RESTMusicService implements MusicService
 		// Set socket read timeout. Note: The timeout increases as the offset gets larger. This is
 		// to avoid the thrashing effect seen when offset is combined with transcoding/downsampling on the server.
 		// In that case, the server uses a long time before sending any data, causing the client to time out.
-		HttpParams params = new BasicHttpParams();
 		int timeout = (int) (SOCKET_READ_TIMEOUT_DOWNLOAD + offset * TIMEOUT_MILLIS_PER_OFFSET_BYTE);
-		HttpConnectionParams.setSoTimeout(params, timeout);
 
-		// Add "Range" header if offset is given.
-		Collection<Header> headers = new ArrayList<Header>();
+		// Add "Range" header if offset or length is given.
+		Map<String, String> headers = new HashMap<String, String>();
 
-		if (offset > 0)
+		if (length > 0)
 		{
-			headers.add(new BasicHeader("Range", String.format("bytes=%d-", offset)));
+			headers.put("Range", String.format("bytes=%d-%d", offset, offset + length - 1));
+		}
+		else if (offset > 0)
+		{
+			headers.put("Range", String.format("bytes=%d-", offset));
 		}
 
 		List<String> parameterNames = asList("id", "maxBitRate");
 		List<Object> parameterValues = Arrays.<Object>asList(song.getId(), maxBitrate);
-		HttpResponse response = getResponseForURL(context, url, params, parameterNames, parameterValues, headers, null, task);
+		HttpTransport.Response response = getResponseForURL(context, url, timeout, parameterNames, parameterValues, headers, null, task);
 
 		// If content type is XML, an error occurred.  Get it.
-		String contentType = Util.getContentType(response.getEntity());
+		String contentType = response.getContentType();
 		if (contentType != null && contentType.startsWith("text/xml"))
 		{
-			InputStream in = response.getEntity().getContent();
+			InputStream in = response.getContent();
 			try
 			{
 				new ErrorParser(context).parse(new InputStreamReader(in, Constants.UTF_8));
@@ -1090,7 +1080,7 @@ public class RESTMusicService implements MusicService
 	public List<Share> getShares(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
 		checkServerVersion(context, "1.6", "Shares not supported.");
-		Reader reader = getReader(context, progressListener, "getShares", null);
+		Reader reader = getReader(context, progressListener, "getShares", 0);
 		try
 		{
 			return new ShareParser(context).parse(reader, progressListener);
@@ -1104,7 +1094,7 @@ public class RESTMusicService implements MusicService
 	private JukeboxStatus executeJukeboxCommand(Context context, ProgressListener progressListener, List<String> parameterNames, List<Object> parameterValues) throws Exception
 	{
 		checkServerVersion(context, "1.7", "Jukebox not supported.");
-		Reader reader = getReader(context, progressListener, "jukeboxControl", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "jukeboxControl", 0, parameterNames, parameterValues);
 		try
 		{
 			return new JukeboxStatusParser(context).parse(reader);
@@ -1115,17 +1105,20 @@ public class RESTMusicService implements MusicService
 		}
 	}
 
-	private Reader getReader(Context context, ProgressListener progressListener, String method, HttpParams requestParams) throws Exception
+	private Reader getReader(Context context, ProgressListener progressListener, String method, int readTimeout) throws Exception
 	{
-		return getReader(context, progressListener, method, requestParams, Collections.<String>emptyList(), Collections.emptyList());
+		return getReader(context, progressListener, method, readTimeout, Collections.<String>emptyList(), Collections.emptyList());
 	}
 
-	private Reader getReader(Context context, ProgressListener progressListener, String method, HttpParams requestParams, String parameterName, Object parameterValue) throws Exception
+	private Reader getReader(Context context, ProgressListener progressListener, String method, int readTimeout, String parameterName, Object parameterValue) throws Exception
 	{
-		return getReader(context, progressListener, method, requestParams, Collections.singletonList(parameterName), Collections.singletonList(parameterValue));
+		return getReader(context, progressListener, method, readTimeout, Collections.singletonList(parameterName), Collections.singletonList(parameterValue));
 	}
 
-	private Reader getReader(Context context, ProgressListener progressListener, String method, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues) throws Exception
+	/**
+	 * @param readTimeout The socket read timeout in milliseconds, or 0 to use the network timeout setting.
+	 */
+	private Reader getReader(Context context, ProgressListener progressListener, String method, int readTimeout, List<String> parameterNames, List<Object> parameterValues) throws Exception
 	{
 
 		if (progressListener != null)
@@ -1134,30 +1127,34 @@ public class RESTMusicService implements MusicService
 		}
 
 		String url = Util.getRestUrl(context, method);
-		return getReaderForURL(context, url, requestParams, parameterNames, parameterValues, progressListener);
+		return getReaderForURL(context, url, readTimeout, parameterNames, parameterValues, progressListener);
 	}
 
-	private Reader getReaderForURL(Context context, String url, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues, ProgressListener progressListener) throws Exception
+	private Reader getReaderForURL(Context context, String url, int readTimeout, List<String> parameterNames, List<Object> parameterValues, ProgressListener progressListener) throws Exception
 	{
-		HttpEntity entity = getEntityForURL(context, url, requestParams, parameterNames, parameterValues, progressListener);
-		if (entity == null)
-		{
-			throw new RuntimeException(String.format("No entity received for URL %s", url));
-		}
+		// Responses to the REST calls are XML, which compresses well.
+		Map<String, String> headers = Collections.singletonMap("Accept-Encoding", "gzip");
+		HttpTransport.Response response = getResponseForURL(context, url, readTimeout, parameterNames, parameterValues, headers, progressListener, null);
 
-		InputStream in = entity.getContent();
+		boolean gzip = "gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"));
+		InputStream in = TrafficCounter.track(getEndpoint(url), response.getContent(), gzip);
 		return new InputStreamReader(in, Constants.UTF_8);
 	}
 
-	private HttpEntity getEntityForURL(Context context, String url, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues, ProgressListener progressListener) throws Exception
+	/**
+	 * Returns the name of the REST method or the page the URL is for.
+	 */
+	private static String getEndpoint(String url)
 	{
-		return getResponseForURL(context, url, requestParams, parameterNames, parameterValues, null, progressListener, null).getEntity();
+		int query = url.indexOf('?');
+		String path = query == -1 ? url : url.substring(0, query);
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		int extension = name.lastIndexOf('.');
+		return extension == -1 ? name : name.substring(0, extension);
 	}
 
-	private HttpResponse getResponseForURL(Context context, String url, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues, Iterable<Header> headers, ProgressListener progressListener, CancellableTask task) throws Exception
+	private HttpTransport.Response getResponseForURL(Context context, String url, int readTimeout, List<String> parameterNames, List<Object> parameterValues, Map<String, String> headers, ProgressListener progressListener, CancellableTask task) throws Exception
 	{
-		Log.d(TAG, String.format("Connections in pool: %d", connManager.getConnectionsInPool()));
-
 		// If not too many parameters, extract them to the URL rather than
 		// relying on the HTTP POST request being
 		// received intact. Remember, HTTP POST requests are converted to GET
@@ -1185,143 +1182,153 @@ public class RESTMusicService implements MusicService
 		}
 
 		String rewrittenUrl = rewriteUrlWithRedirect(context, url);
-		return executeWithRetry(context, rewrittenUrl, url, requestParams, parameterNames, parameterValues, headers, progressListener, task);
+		return executeWithRetry(context, rewrittenUrl, url, readTimeout, parameterNames, parameterValues, headers, progressListener, task);
 	}
 
-	private HttpResponse executeWithRetry(Context context, String url, String originalUrl, HttpParams requestParams, List<String> parameterNames, List<Object> parameterValues, Iterable<Header> headers, ProgressListener progressListener, CancellableTask task) throws IOException
+	private HttpTransport.Response executeWithRetry(Context context, String url, String originalUrl, int readTimeout, List<String> parameterNames, List<Object> parameterValues, Map<String, String> headers, ProgressListener progressListener, CancellableTask task) throws IOException
 	{
 		Log.i(TAG, String.format("Using URL %s", url));
 
-		int networkTimeout = Util.getNetworkTimeout(context);
-		HttpParams newParams = httpClient.getParams();
-		HttpConnectionParams.setSoTimeout(newParams, networkTimeout);
-		httpClient.setParams(newParams);
-		final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>(false);
+		Server server = getServer(context, originalUrl);
+
+		if (!server.circuitBreaker.allowRequest())
+		{
+			throw new ServerUnavailableException(String.format("%s is not responding, trying again in %d s", server.name, server.circuitBreaker.getRetryAfter() / 1000));
+		}
+
+		if (readTimeout > 0)
+		{
+			Log.d(TAG, String.format("Socket read timeout: %d ms.", readTimeout));
+		}
+		else
+		{
+			readTimeout = Util.getNetworkTimeout(context);
+		}
+
+		// Set credentials to get through apache proxies that require authentication.
+		SharedPreferences preferences = Util.getPreferences(context);
+		int instance = preferences.getInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, 1);
+		String username = preferences.getString(Constants.PREFERENCES_KEY_USERNAME + instance, null);
+		String password = preferences.getString(Constants.PREFERENCES_KEY_PASSWORD + instance, null);
+
+		boolean idempotent = !NON_IDEMPOTENT_METHODS.contains(getEndpoint(originalUrl));
+		server.retryPolicy.onRequest();
 		int attempts = 0;
 
 		while (true)
 		{
 			attempts++;
-			HttpContext httpContext = new BasicHttpContext();
-			final HttpPost request = new HttpPost(url);
-
-			if (task != null)
-			{
-				// Attempt to abort the HTTP request if the task is cancelled.
-				task.setOnCancelListener(new CancellableTask.OnCancelListener()
-				{
-					@Override
-					public void onCancel()
-					{
-						new Thread(new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								try
-								{
-									cancelled.set(true);
-									request.abort();
-								}
-								catch (Exception e)
-								{
-									Log.e(TAG, "Failed to stop http task");
-								}
-							}
-						}).start();
-					}
-				});
-			}
+			HttpTransport.Request request = new HttpTransport.Request(url);
+			request.setConnectTimeout(SOCKET_CONNECT_TIMEOUT);
+			request.setReadTimeout(readTimeout);
+			request.setCredentials(username, password);
 
 			if (parameterNames != null)
 			{
-				List<NameValuePair> params = new ArrayList<NameValuePair>();
-
 				for (int i = 0; i < parameterNames.size(); i++)
 				{
-					params.add(new BasicNameValuePair(parameterNames.get(i), String.valueOf(parameterValues.get(i))));
+					request.addParameter(parameterNames.get(i), parameterValues.get(i));
 				}
-
-				request.setEntity(new UrlEncodedFormEntity(params, Constants.UTF_8));
-			}
-
-			if (requestParams != null)
-			{
-				request.setParams(requestParams);
-				Log.d(TAG, String.format("Socket read timeout: %d ms.", HttpConnectionParams.getSoTimeout(requestParams)));
 			}
 
 			if (headers != null)
 			{
-				for (Header header : headers)
+				for (Map.Entry<String, String> header : headers.entrySet())
 				{
-					request.addHeader(header);
+					request.setHeader(header.getKey(), header.getValue());
 				}
 			}
 
-			// Set credentials to get through apache proxies that require authentication.
-			SharedPreferences preferences = Util.getPreferences(context);
-			int instance = preferences.getInt(Constants.PREFERENCES_KEY_SERVER_INSTANCE, 1);
-			String username = preferences.getString(Constants.PREFERENCES_KEY_USERNAME + instance, null);
-			String password = preferences.getString(Constants.PREFERENCES_KEY_PASSWORD + instance, null);
-			httpClient.getCredentialsProvider().setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
-
 			try
 			{
-				HttpResponse response = httpClient.execute(request, httpContext);
-				detectRedirect(originalUrl, context, httpContext);
+				HttpTransport.Response response = transport.execute(request, task);
+				int status = response.getStatusCode();
+
+				// A proxy in front of the server answers these when the server is down or overloaded.
+				if (status == 502 || status == 503 || status == 504)
+				{
+					String statusLine = response.getStatusLine();
+					response.abort();
+					throw new IOException(String.format("Server returned %s", statusLine));
+				}
+
+				server.circuitBreaker.onSuccess();
+				detectRedirect(originalUrl, context, response.getUrl());
 				return response;
 			}
 			catch (IOException x)
 			{
-				request.abort();
+				if (task != null && task.isCancelled())
+				{
+					server.circuitBreaker.onAbandoned();
+					throw x;
+				}
 
-				if (attempts >= HTTP_REQUEST_MAX_ATTEMPTS || cancelled.get())
+				server.circuitBreaker.onFailure();
+
+				if (server.circuitBreaker.isOpen() || !server.retryPolicy.shouldRetry(x, attempts, idempotent))
 				{
 					throw x;
 				}
 
 				if (progressListener != null)
 				{
-					String msg = context.getResources().getString(R.string.music_service_retry, attempts, HTTP_REQUEST_MAX_ATTEMPTS - 1);
+					String msg = context.getResources().getString(R.string.music_service_retry, attempts, RetryPolicy.MAX_ATTEMPTS - 1);
 					progressListener.updateProgress(msg);
 				}
 
 				Log.w(TAG, String.format("Got IOException (%d), will retry", attempts), x);
-				increaseTimeouts(requestParams);
-				Util.sleepQuietly(2000L);
+
+				// Give a slow server more time to answer on the next attempt.
+				if (x instanceof SocketTimeoutException)
+				{
+					readTimeout = (int) (readTimeout * 1.5F);
+				}
+
+				Util.sleepQuietly(server.retryPolicy.getDelay(attempts));
 			}
 		}
 	}
 
-	private static void increaseTimeouts(HttpParams requestParams)
+	/**
+	 * Returns the retry state of the server the URL is on, for the network the device is on now. Failures on one
+	 * network say nothing about another one.
+	 */
+	private Server getServer(Context context, String url)
 	{
-		if (requestParams != null)
+		int rest = url.indexOf("/rest/");
+		int query = url.indexOf('?');
+		String name = rest != -1 ? url.substring(0, rest) : query != -1 ? url.substring(0, query) : url;
+		String key = getCurrentNetworkType(context) + " " + name;
+		Server server = servers.get(key);
+
+		if (server == null)
 		{
-			int connectTimeout = HttpConnectionParams.getConnectionTimeout(requestParams);
-			if (connectTimeout != 0)
-			{
-				HttpConnectionParams.setConnectionTimeout(requestParams, (int) (connectTimeout * 1.3F));
-			}
-			int readTimeout = HttpConnectionParams.getSoTimeout(requestParams);
-			if (readTimeout != 0)
+			Server created = new Server(name);
+			server = servers.putIfAbsent(key, created);
+
+			if (server == null)
 			{
-				HttpConnectionParams.setSoTimeout(requestParams, (int) (readTimeout * 1.5F));
+				server = created;
 			}
 		}
+
+		return server;
 	}
 
-	private void detectRedirect(String originalUrl, Context context, HttpContext httpContext)
+	private void detectRedirect(String originalUrl, Context context, String redirectedUrl)
 	{
-		HttpUriRequest request = (HttpUriRequest) httpContext.getAttribute(ExecutionContext.HTTP_REQUEST);
-		HttpHost host = (HttpHost) httpContext.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+		int from = originalUrl.indexOf("/rest/");
+		int to = redirectedUrl.indexOf("/rest/");
 
-		// Sometimes the request doesn't contain the "http://host" part
-		String redirectedUrl;
-		redirectedUrl = request.getURI().getScheme() == null ? host.toURI() + request.getURI() : request.getURI().toString();
+		// Only calls to the server itself are redirected.
+		if (from == -1 || to == -1)
+		{
+			return;
+		}
 
-		redirectFrom = originalUrl.substring(0, originalUrl.indexOf("/rest/"));
-		redirectTo = redirectedUrl.substring(0, redirectedUrl.indexOf("/rest/"));
+		redirectFrom = originalUrl.substring(0, from);
+		redirectTo = redirectedUrl.substring(0, to);
 
 		Log.i(TAG, String.format("%s redirects to %s", redirectFrom, redirectTo));
 		redirectionLastChecked = System.currentTimeMillis();
@@ -1362,7 +1369,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.9", "Genres not supported.");
 
-		Reader reader = getReader(context, progressListener, "getGenres", null);
+		Reader reader = getReader(context, progressListener, "getGenres", 0);
 		try
 		{
 			return new GenreParser(context).parse(reader, progressListener);
@@ -1378,9 +1385,6 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.9", "Genres not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
@@ -1391,7 +1395,7 @@ public class RESTMusicService implements MusicService
 		parameterNames.add("offset");
 		parameterValues.add(offset);
 
-		Reader reader = getReader(context, progressListener, "getSongsByGenre", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "getSongsByGenre", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1408,16 +1412,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.3", "getUser not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
 		parameterNames.add("username");
 		parameterValues.add(username);
 
-		Reader reader = getReader(context, progressListener, "getUser", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "getUser", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1434,16 +1435,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Chat not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
 		parameterNames.add("since");
 		parameterValues.add(since);
 
-		Reader reader = getReader(context, progressListener, "getChatMessages", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "getChatMessages", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1460,16 +1458,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Chat not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
 		parameterNames.add("message");
 		parameterValues.add(message);
 
-		Reader reader = getReader(context, progressListener, "addChatMessage", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "addChatMessage", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1486,7 +1481,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.9", "Bookmarks not supported.");
 
-		Reader reader = getReader(context, progressListener, "getBookmarks", null);
+		Reader reader = getReader(context, progressListener, "getBookmarks", 0);
 
 		try
 		{
@@ -1503,9 +1498,6 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.9", "Bookmarks not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
@@ -1514,7 +1506,7 @@ public class RESTMusicService implements MusicService
 		parameterNames.add("position");
 		parameterValues.add(position);
 
-		Reader reader = getReader(context, progressListener, "createBookmark", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "createBookmark", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1531,16 +1523,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.9", "Bookmarks not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
 		parameterNames.add("id");
 		parameterValues.add(id);
 
-		Reader reader = getReader(context, progressListener, "deleteBookmark", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "deleteBookmark", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1557,7 +1546,7 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Videos not supported.");
 
-		Reader reader = getReader(context, progressListener, "getVideos", null);
+		Reader reader = getReader(context, progressListener, "getVideos", 0);
 
 		try
 		{
@@ -1593,7 +1582,7 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(expires);
 		}
 
-		Reader reader = getReader(context, progressListener, "createShare", null, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "createShare", 0, parameterNames, parameterValues);
 		try
 		{
 			return new ShareParser(context).parse(reader, progressListener);
@@ -1609,16 +1598,13 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.6", "Shares not supported.");
 
-		HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
 		parameterNames.add("id");
 		parameterValues.add(id);
 
-		Reader reader = getReader(context, progressListener, "deleteShare", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "deleteShare", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 
 		try
 		{
@@ -1635,9 +1621,6 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.6", "Updating share not supported.");
 
-  	HttpParams params = new BasicHttpParams();
-		HttpConnectionParams.setSoTimeout(params, SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
-
 		List<String> parameterNames = new ArrayList<String>();
 		List<Object> parameterValues = new ArrayList<Object>();
 
@@ -1656,7 +1639,7 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(expires);
 		}
 
-		Reader reader = getReader(context, progressListener, "updateShare", params, parameterNames, parameterValues);
+		Reader reader = getReader(context, progressListener, "updateShare", SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS, parameterNames, parameterValues);
 		try
 		{
 			new ErrorParser(context).parse(reader);
@@ -1674,71 +1657,61 @@ public class RESTMusicService implements MusicService
 		if (!checkServerVersion(context, "1.8"))
 			return null;
 
-		// Synchronize on the username so that we don't download concurrently for
-		// the same user.
 		if (username == null)
 		{
 			return null;
 		}
 
-		synchronized (username)
-		{
-			// Use cached file, if existing.
-			Bitmap bitmap = FileUtil.getAvatarBitmap(username, size, highQuality);
-
-			if (bitmap == null)
-			{
-				String url = Util.getRestUrl(context, "getAvatar");
+		// Use cached file, if existing.
+		Bitmap bitmap = FileUtil.getAvatarBitmap(username, size, highQuality);
 
-				InputStream in = null;
-
-				try
-				{
-					List<String> parameterNames;
-					List<Object> parameterValues;
-
-					parameterNames = Collections.singletonList("username");
-					parameterValues = Arrays.<Object>asList(username);
+		if (bitmap == null)
+		{
+			String url = Util.getRestUrl(context, "getAvatar");
 
-					HttpEntity entity = getEntityForURL(context, url, null, parameterNames, parameterValues, progressListener);
-					in = entity.getContent();
+			InputStream in = null;
 
-					// If content type is XML, an error occurred. Get it.
-					String contentType = Util.getContentType(entity);
-					if (contentType != null && contentType.startsWith("text/xml"))
-					{
-						new ErrorParser(context).parse(new InputStreamReader(in, Constants.UTF_8));
-						return null; // Never reached.
-					}
+			try
+			{
+				List<String> parameterNames;
+				List<Object> parameterValues;
 
-					byte[] bytes = Util.toByteArray(in);
+				parameterNames = Collections.singletonList("username");
+				parameterValues = Arrays.<Object>asList(username);
 
-					// If we aren't allowing server-side scaling, always save the file to disk because it will be unmodified
-					if (saveToFile)
-					{
-						OutputStream out = null;
-
-						try
-						{
-							out = new FileOutputStream(FileUtil.getAvatarFile(username));
-							out.write(bytes);
-						}
-						finally
-						{
-							Util.close(out);
-						}
-					}
+				HttpTransport.Response response = getResponseForURL(context, url, 0, parameterNames, parameterValues, null, progressListener, null);
+				in = response.getContent();
 
-					bitmap = FileUtil.getSampledBitmap(bytes, size, highQuality);
-				}
-				finally
+				// If content type is XML, an error occurred. Get it.
+				String contentType = response.getContentType();
+				if (contentType != null && contentType.startsWith("text/xml"))
 				{
-					Util.close(in);
+					new ErrorParser(context).parse(new InputStreamReader(in, Constants.UTF_8));
+					return null; // Never reached.
 				}
+
+				bitmap = saveAndDecode(context, in, saveToFile ? FileUtil.getAvatarFile(username) : null, size, highQuality);
+			}
+			finally
+			{
+				Util.close(in);
 			}
+		}
 
-			// Return scaled bitmap
-			return Util.scaleBitmap(bitmap, size);
+		// Return scaled bitmap
+		return Util.scaleBitmap(bitmap, size);
+	}
+
+	private static class Server
+	{
+		private final String name;
+		private final RetryPolicy retryPolicy = new RetryPolicy();
+		private final CircuitBreaker circuitBreaker;
+
+		public Server(String name)
+		{
+			this.name = name;
+			circuitBreaker = new CircuitBreaker(name);
 		}
 	}
 }
@@ -0,0 +1,119 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Decides whether and when a failed request to a server is sent again.
+ * <p/>
+ * The wait before each retry doubles, with a random part so that requests that failed together don't all come
+ * back at the same moment. Retries also come out of a budget that every request adds a little to, so that when a
+ * server is in trouble the retries can't multiply the load on it.
+ */
+public class RetryPolicy
+{
+	private static final String TAG = RetryPolicy.class.getSimpleName();
+
+	public static final int MAX_ATTEMPTS = 5;
+
+	private static final long BASE_DELAY = 500L;
+	private static final long MAX_DELAY = 8000L;
+
+	private static final double RETRIES_PER_REQUEST = 0.2;
+	private static final double MAX_BUDGET = 10.0;
+
+	private final Random random = new Random();
+	private double budget = MAX_BUDGET;
+
+	/**
+	 * Records that a request is about to be sent for the first time.
+	 */
+	public synchronized void onRequest()
+	{
+		budget = Math.min(MAX_BUDGET, budget + RETRIES_PER_REQUEST);
+	}
+
+	/**
+	 * Returns whether a request that failed may be sent again, taking the retry out of the budget if so.
+	 *
+	 * @param attempts   How many times the request has been sent.
+	 * @param idempotent Whether sending the request twice does no harm.
+	 */
+	public synchronized boolean shouldRetry(IOException x, int attempts, boolean idempotent)
+	{
+		if (attempts >= MAX_ATTEMPTS || !isRetryable(x, idempotent))
+		{
+			return false;
+		}
+
+		if (budget < 1.0)
+		{
+			Log.w(TAG, "Retry budget used up, not retrying");
+			return false;
+		}
+
+		budget -= 1.0;
+		return true;
+	}
+
+	/**
+	 * Returns how long to wait before sending a request again after the given number of attempts.
+	 */
+	public long getDelay(int attempts)
+	{
+		long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempts - 1, 16));
+		return cap / 2 + (long) (random.nextDouble() * cap / 2);
+	}
+
+	private static boolean isRetryable(IOException x, boolean idempotent)
+	{
+		// Certificate problems and cancelled requests don't go away by trying again.
+		if (x instanceof SSLHandshakeException || x instanceof SSLPeerUnverifiedException)
+		{
+			return false;
+		}
+
+		if (x instanceof InterruptedIOException && !(x instanceof SocketTimeoutException))
+		{
+			return false;
+		}
+
+		return idempotent || !wasSent(x);
+	}
+
+	/**
+	 * Returns whether the request may have reached the server before it failed.
+	 */
+	private static boolean wasSent(IOException x)
+	{
+		return !(x instanceof ConnectException || x instanceof NoRouteToHostException || x instanceof UnknownHostException);
+	}
+}
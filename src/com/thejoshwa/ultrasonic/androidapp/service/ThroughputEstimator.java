@@ -0,0 +1,141 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how fast songs download, separately for each type of network.
+ * <p/>
+ * While any song is downloading, the bytes written by all downloads are added up over a window of a couple of
+ * seconds, and the rate of each window goes into a moving average for the network the device is on. Stalls count
+ * as well, as a window ends when the estimate is read even if no data arrived.
+ */
+public class ThroughputEstimator implements DownloadProgressBus.Listener
+{
+	private static final String TAG = ThroughputEstimator.class.getSimpleName();
+	private static final long SAMPLE_MILLIS = 2000L;
+	private static final double WEIGHT = 0.3;
+
+	private final Context context;
+	private final Map<DownloadFile, Long> downloads = new HashMap<DownloadFile, Long>();
+	private final Map<Integer, Double> estimates = new HashMap<Integer, Double>();
+	private long windowStart;
+	private long windowBytes;
+
+	public ThroughputEstimator(Context context)
+	{
+		this.context = context;
+	}
+
+	@Override
+	public synchronized void onProgress(DownloadFile downloadFile, long bytes)
+	{
+		Long last = downloads.get(downloadFile);
+
+		if (last == null)
+		{
+			// Started before this estimator was registered.
+			start(downloadFile, bytes);
+			return;
+		}
+
+		windowBytes += Math.max(0, bytes - last);
+		downloads.put(downloadFile, bytes);
+		sample(false);
+	}
+
+	@Override
+	public synchronized void onStateChanged(DownloadFile downloadFile, DownloadProgressBus.State state)
+	{
+		if (state == DownloadProgressBus.State.STARTED)
+		{
+			start(downloadFile, downloadFile.getPartialFile().length());
+		}
+		else if (downloads.remove(downloadFile) != null)
+		{
+			sample(downloads.isEmpty());
+		}
+	}
+
+	/**
+	 * Returns the estimated download rate on the current network, or -1 if nothing has been measured on it yet.
+	 */
+	public synchronized double getBytesPerSecond()
+	{
+		if (!downloads.isEmpty())
+		{
+			sample(false);
+		}
+
+		Double estimate = estimates.get(getNetworkType());
+		return estimate == null ? -1 : estimate;
+	}
+
+	private void start(DownloadFile downloadFile, long bytes)
+	{
+		if (downloads.isEmpty())
+		{
+			windowStart = SystemClock.elapsedRealtime();
+			windowBytes = 0;
+		}
+
+		downloads.put(downloadFile, bytes);
+	}
+
+	/**
+	 * Ends the current window if it is long enough, or if the last download stopped and it holds enough data to
+	 * be meaningful.
+	 */
+	private void sample(boolean last)
+	{
+		long now = SystemClock.elapsedRealtime();
+		long elapsed = now - windowStart;
+
+		if (elapsed < SAMPLE_MILLIS && !(last && elapsed >= SAMPLE_MILLIS / 4))
+		{
+			return;
+		}
+
+		double rate = windowBytes * 1000.0 / elapsed;
+		int networkType = getNetworkType();
+		Double estimate = estimates.get(networkType);
+		estimate = estimate == null ? rate : estimate + WEIGHT * (rate - estimate);
+		estimates.put(networkType, estimate);
+
+		Log.d(TAG, String.format("Measured %.0f bytes/s, estimate for network %d is %.0f bytes/s", rate, networkType, estimate));
+
+		windowStart = now;
+		windowBytes = 0;
+	}
+
+	private int getNetworkType()
+	{
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = manager.getActiveNetworkInfo();
+		return networkInfo == null ? -1 : networkInfo.getType();
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts the bytes received from each REST endpoint, both as sent over the network and after decompression, so
+ * that the effect of compressing responses can be seen in the log.
+ */
+public final class TrafficCounter
+{
+	private static final String TAG = TrafficCounter.class.getSimpleName();
+	private static final int BUFFER_SIZE = 8192;
+	private static final ConcurrentMap<String, Totals> TOTALS = new ConcurrentHashMap<String, Totals>();
+
+	private TrafficCounter()
+	{
+	}
+
+	/**
+	 * Returns a buffered stream of the decoded response body, which adds its byte counts to the endpoint when
+	 * it is closed.
+	 *
+	 * @param gzip Whether the body is gzip compressed.
+	 */
+	public static InputStream track(String endpoint, InputStream in, boolean gzip) throws IOException
+	{
+		CountingInputStream wire = new CountingInputStream(new BufferedInputStream(in, BUFFER_SIZE), null, null);
+		InputStream decoded = gzip ? new GZIPInputStream(wire, BUFFER_SIZE) : wire;
+		return new CountingInputStream(decoded, endpoint, wire);
+	}
+
+	private static void add(String endpoint, long wireBytes, long decodedBytes)
+	{
+		Totals totals = TOTALS.get(endpoint);
+
+		if (totals == null)
+		{
+			Totals created = new Totals();
+			totals = TOTALS.putIfAbsent(endpoint, created);
+
+			if (totals == null)
+			{
+				totals = created;
+			}
+		}
+
+		long totalWire = totals.wire.addAndGet(wireBytes);
+		long totalDecoded = totals.decoded.addAndGet(decodedBytes);
+
+		Log.d(TAG, String.format("%s: received %d bytes for %d (total %d for %d, %.0f%% saved)", endpoint, wireBytes, decodedBytes, totalWire, totalDecoded, totalDecoded == 0 ? 0.0 : 100.0 * (totalDecoded - totalWire) / totalDecoded));
+	}
+
+	private static final class Totals
+	{
+		private final AtomicLong wire = new AtomicLong();
+		private final AtomicLong decoded = new AtomicLong();
+	}
+
+	private static final class CountingInputStream extends FilterInputStream
+	{
+		private final String endpoint;
+		private final CountingInputStream wire;
+		private long count;
+		private boolean closed;
+
+		public CountingInputStream(InputStream in, String endpoint, CountingInputStream wire)
+		{
+			super(in);
+			this.endpoint = endpoint;
+			this.wire = wire;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+
+			if (b != -1)
+			{
+				count++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int n = super.read(buffer, offset, length);
+
+			if (n > 0)
+			{
+				count += n;
+			}
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				if (!closed && endpoint != null)
+				{
+					add(endpoint, wire.count, count);
+				}
+
+				closed = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.service;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.thejoshwa.ultrasonic.androidapp.util.CancellableTask;
+import com.thejoshwa.ultrasonic.androidapp.util.Constants;
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends requests with {@link HttpURLConnection}, whose connections are kept alive and pooled by the platform.
+ * Redirects are followed here rather than by the platform, so that they may switch between HTTP and HTTPS and
+ * so that form parameters are sent again to the new location.
+ */
+public class UrlConnectionTransport implements HttpTransport
+{
+	private static final String TAG = UrlConnectionTransport.class.getSimpleName();
+
+	private static final int MAX_CONNECTIONS = 20;
+	private static final int MAX_REDIRECTS = 5;
+
+	// Idle connections are closed before a typical server drops them, so that a pooled connection is rarely found
+	// to be dead when it is reused.
+	private static final long KEEP_ALIVE_MILLIS = 30000L;
+
+	// Closing a socket may block, so aborts are done on a thread of their own, shared by all requests.
+	private static final Executor ABORTER = Executors.newSingleThreadExecutor();
+
+	static
+	{
+		// The pool reads these when it is first used.
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS));
+		System.setProperty("http.keepAliveDuration", String.valueOf(KEEP_ALIVE_MILLIS));
+	}
+
+	private final SSLSocketFactory sslSocketFactory;
+	private final HostnameVerifier hostnameVerifier;
+
+	/**
+	 * @param sslSocketFactory The factory for HTTPS connections, or null for the platform default.
+	 * @param hostnameVerifier The verifier for HTTPS connections, or null for the platform default.
+	 */
+	public UrlConnectionTransport(SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier)
+	{
+		this.sslSocketFactory = sslSocketFactory;
+		this.hostnameVerifier = hostnameVerifier;
+	}
+
+	@Override
+	public Response execute(Request request, final CancellableTask task) throws IOException
+	{
+		final AtomicReference<HttpURLConnection> current = new AtomicReference<HttpURLConnection>();
+
+		if (task != null)
+		{
+			task.setOnCancelListener(new CancellableTask.OnCancelListener()
+			{
+				@Override
+				public void onCancel()
+				{
+					abort(current.get());
+				}
+			});
+		}
+
+		String url = request.getUrl();
+		byte[] body = request.getParameterNames().isEmpty() ? null : encodeForm(request);
+		String authorization = null;
+		int redirects = 0;
+
+		while (true)
+		{
+			HttpURLConnection connection = open(url, request, body, authorization);
+			current.set(connection);
+
+			try
+			{
+				if (task != null && task.isCancelled())
+				{
+					throw new InterruptedIOException(String.format("Request for %s cancelled", url));
+				}
+
+				connect(connection);
+
+				if (body != null)
+				{
+					OutputStream out = connection.getOutputStream();
+
+					try
+					{
+						out.write(body);
+					}
+					finally
+					{
+						Util.close(out);
+					}
+				}
+
+				int status = connection.getResponseCode();
+				String location = connection.getHeaderField("Location");
+
+				if (isRedirect(status) && location != null && redirects < MAX_REDIRECTS)
+				{
+					redirects++;
+					url = new URL(new URL(url), location).toString();
+					Log.d(TAG, String.format("Redirected to %s", url));
+
+					// A 303 is answered with a plain GET.
+					if (status == 303)
+					{
+						body = null;
+					}
+
+					discard(connection);
+					continue;
+				}
+
+				if ((status == 401 || status == 407) && authorization == null && request.getUsername() != null)
+				{
+					authorization = status == 401 ? "Authorization" : "Proxy-Authorization";
+					discard(connection);
+					continue;
+				}
+
+				return new UrlConnectionResponse(connection, status, url);
+			}
+			catch (IOException x)
+			{
+				connection.disconnect();
+				throw x;
+			}
+		}
+	}
+
+	private HttpURLConnection open(String url, Request request, byte[] body, String authorization) throws IOException
+	{
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+		if (connection instanceof HttpsURLConnection)
+		{
+			HttpsURLConnection https = (HttpsURLConnection) connection;
+
+			if (sslSocketFactory != null)
+			{
+				https.setSSLSocketFactory(sslSocketFactory);
+			}
+
+			if (hostnameVerifier != null)
+			{
+				https.setHostnameVerifier(hostnameVerifier);
+			}
+		}
+
+		connection.setInstanceFollowRedirects(false);
+		connection.setUseCaches(false);
+		connection.setConnectTimeout(request.getConnectTimeout());
+		connection.setReadTimeout(request.getReadTimeout());
+
+		// Otherwise the platform asks for gzip itself and unzips the body, which breaks range requests.
+		connection.setRequestProperty("Accept-Encoding", "identity");
+
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+		{
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+
+		if (authorization != null)
+		{
+			String credentials = request.getUsername() + ':' + (request.getPassword() == null ? "" : request.getPassword());
+			connection.setRequestProperty(authorization, "Basic " + Base64.encodeToString(credentials.getBytes(Constants.UTF_8), Base64.NO_WRAP));
+		}
+
+		if (body != null)
+		{
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Connects, reporting a failure as a {@link ConnectException} so that the caller knows nothing was sent.
+	 */
+	private static void connect(HttpURLConnection connection) throws IOException
+	{
+		try
+		{
+			connection.connect();
+		}
+		catch (SSLException x)
+		{
+			throw x;
+		}
+		catch (ConnectException x)
+		{
+			throw x;
+		}
+		catch (UnknownHostException x)
+		{
+			throw x;
+		}
+		catch (IOException x)
+		{
+			ConnectException connectException = new ConnectException(String.format("Failed to connect to %s", connection.getURL().getHost()));
+			connectException.initCause(x);
+			throw connectException;
+		}
+	}
+
+	private static byte[] encodeForm(Request request) throws IOException
+	{
+		List<String> names = request.getParameterNames();
+		List<String> values = request.getParameterValues();
+		StringBuilder builder = new StringBuilder();
+
+		for (int i = 0; i < names.size(); i++)
+		{
+			if (i > 0)
+			{
+				builder.append('&');
+			}
+
+			builder.append(URLEncoder.encode(names.get(i), Constants.UTF_8)).append('=');
+			builder.append(URLEncoder.encode(values.get(i), Constants.UTF_8));
+		}
+
+		return builder.toString().getBytes(Constants.UTF_8);
+	}
+
+	private static boolean isRedirect(int status)
+	{
+		return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+	}
+
+	/**
+	 * Drops a response that is not handed out, such as a redirect.
+	 */
+	private static void discard(HttpURLConnection connection)
+	{
+		Util.close(connection.getErrorStream());
+		connection.disconnect();
+	}
+
+	private static void abort(final HttpURLConnection connection)
+	{
+		if (connection == null)
+		{
+			return;
+		}
+
+		ABORTER.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					connection.disconnect();
+				}
+				catch (Exception x)
+				{
+					Log.w(TAG, "Failed to abort connection", x);
+				}
+			}
+		});
+	}
+
+	private static class UrlConnectionResponse implements Response
+	{
+		private final HttpURLConnection connection;
+		private final int status;
+		private final String url;
+		private InputStream content;
+
+		public UrlConnectionResponse(HttpURLConnection connection, int status, String url)
+		{
+			this.connection = connection;
+			this.status = status;
+			this.url = url;
+		}
+
+		@Override
+		public int getStatusCode()
+		{
+			return status;
+		}
+
+		@Override
+		public String getStatusLine()
+		{
+			try
+			{
+				String message = connection.getResponseMessage();
+				return message == null ? String.valueOf(status) : status + " " + message;
+			}
+			catch (IOException x)
+			{
+				return String.valueOf(status);
+			}
+		}
+
+		@Override
+		public String getHeader(String name)
+		{
+			return connection.getHeaderField(name);
+		}
+
+		@Override
+		public String getContentType()
+		{
+			return connection.getContentType();
+		}
+
+		@Override
+		public String getUrl()
+		{
+			return url;
+		}
+
+		@Override
+		public synchronized InputStream getContent() throws IOException
+		{
+			if (content == null)
+			{
+				// The body of an error response has to be asked for separately.
+				InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+				content = in == null ? new ByteArrayInputStream(new byte[0]) : in;
+			}
+
+			return content;
+		}
+
+		@Override
+		public void abort()
+		{
+			connection.disconnect();
+		}
+	}
+}
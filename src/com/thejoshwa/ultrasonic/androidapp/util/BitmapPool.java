@@ -0,0 +1,112 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Keeps bitmaps that are no longer needed, so that images can be decoded into their memory with
+ * {@link BitmapFactory.Options#inBitmap} instead of allocating new bitmaps. Only bitmaps that nothing else refers
+ * to may be put here, as their pixels will be overwritten.
+ */
+public class BitmapPool
+{
+	private final long maxBytes;
+	private final LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+	private long bytes;
+
+	public BitmapPool(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized void put(Bitmap bitmap)
+	{
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888)
+		{
+			return;
+		}
+
+		int size = getByteCount(bitmap);
+
+		if (size > maxBytes)
+		{
+			return;
+		}
+
+		bitmaps.addFirst(bitmap);
+		bytes += size;
+
+		while (bytes > maxBytes)
+		{
+			bytes -= getByteCount(bitmaps.removeLast());
+		}
+	}
+
+	/**
+	 * Sets up the options to decode into a pooled bitmap, if one fits. The bounds and the sample size of the
+	 * image must already be in the options.
+	 */
+	public synchronized void prepare(BitmapFactory.Options options)
+	{
+		options.inMutable = true;
+		Iterator<Bitmap> iterator = bitmaps.iterator();
+
+		while (iterator.hasNext())
+		{
+			Bitmap bitmap = iterator.next();
+
+			if (fits(bitmap, options))
+			{
+				iterator.remove();
+				bytes -= getByteCount(bitmap);
+				options.inBitmap = bitmap;
+				return;
+			}
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private static boolean fits(Bitmap bitmap, BitmapFactory.Options options)
+	{
+		int sampleSize = Math.max(1, options.inSampleSize);
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+		{
+			long width = (options.outWidth + sampleSize - 1) / sampleSize;
+			long height = (options.outHeight + sampleSize - 1) / sampleSize;
+			return width * height * 4 <= bitmap.getAllocationByteCount();
+		}
+
+		// Before KitKat the image has to be decoded at exactly the size of the bitmap.
+		return sampleSize == 1 && bitmap.getWidth() == options.outWidth && bitmap.getHeight() == options.outHeight;
+	}
+
+	@SuppressLint("NewApi")
+	private static int getByteCount(Bitmap bitmap)
+	{
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+	}
+}
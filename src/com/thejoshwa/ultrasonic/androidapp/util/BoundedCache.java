@@ -0,0 +1,354 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, access-ordered cache with constant time lookup and eviction.
+ * <p/>
+ * The cache is split into a number of independently locked segments, so that
+ * concurrent readers of unrelated keys do not contend on a single monitor.
+ * Each segment is a {@link LinkedHashMap} in access order, so the least
+ * recently used entry is always at the head and can be evicted in O(1).
+ * The capacity applies to the cache as a whole: when it is exceeded, entries
+ * are evicted from the segment that was added to first, and then from the
+ * others, so a single heavy entry fits as long as it fits the whole cache.
+ * <p/>
+ * By default every entry has a weight of one and the capacity is an entry
+ * count. An optional {@link Weigher} can be supplied to bound the cache by
+ * some other measure, such as the byte size of bitmaps.
+ */
+public class BoundedCache<K, V>
+{
+	private static final int DEFAULT_SEGMENTS = 4;
+
+	private final List<Segment> segments;
+	private final Weigher<V> weigher;
+	private final long maxWeight;
+	private final AtomicLong weight = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	public BoundedCache(long capacity)
+	{
+		this(capacity, null);
+	}
+
+	public BoundedCache(long maxWeight, Weigher<V> weigher)
+	{
+		this(maxWeight, weigher, DEFAULT_SEGMENTS);
+	}
+
+	public BoundedCache(long maxWeight, Weigher<V> weigher, int segmentCount)
+	{
+		if (maxWeight <= 0)
+		{
+			throw new IllegalArgumentException("maxWeight must be positive");
+		}
+
+		// Small caches are not worth splitting.
+		segmentCount = (int) Math.max(1, Math.min(segmentCount, maxWeight));
+
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+		segments = new ArrayList<Segment>(segmentCount);
+
+		for (int i = 0; i < segmentCount; i++)
+		{
+			segments.add(new Segment());
+		}
+	}
+
+	public V get(K key)
+	{
+		V value = segmentFor(key).get(key);
+
+		if (value == null)
+		{
+			missCount.incrementAndGet();
+		}
+		else
+		{
+			hitCount.incrementAndGet();
+		}
+
+		return value;
+	}
+
+	public void put(K key, V value)
+	{
+		if (key == null || value == null)
+		{
+			return;
+		}
+
+		Segment segment = segmentFor(key);
+		segment.put(key, value, weigh(value));
+		evict(segment, key);
+	}
+
+	/**
+	 * Adds the value unless the cache already holds one for the key, in which case that one is returned.
+	 */
+	public V putIfAbsent(K key, V value)
+	{
+		if (key == null || value == null)
+		{
+			return null;
+		}
+
+		Segment segment = segmentFor(key);
+		V existing = segment.putIfAbsent(key, value, weigh(value));
+
+		if (existing == null)
+		{
+			evict(segment, key);
+		}
+
+		return existing;
+	}
+
+	public V remove(K key)
+	{
+		return segmentFor(key).remove(key);
+	}
+
+	public void clear()
+	{
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+
+		for (Segment segment : segments)
+		{
+			size += segment.size();
+		}
+
+		return size;
+	}
+
+	public long weight()
+	{
+		return weight.get();
+	}
+
+	public long getMaxWeight()
+	{
+		return maxWeight;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("BoundedCache (size: %d, weight: %d/%d, hits: %d, misses: %d, evictions: %d)", size(), weight(), maxWeight, getHitCount(), getMissCount(), getEvictionCount());
+	}
+
+	private int weigh(V value)
+	{
+		if (weigher == null)
+		{
+			return 1;
+		}
+
+		return Math.max(1, weigher.weigh(value));
+	}
+
+	/**
+	 * Evicts entries until the cache is within its capacity, starting with the segment that was just added to.
+	 * The entry that was just added is kept as long as any other entry can be evicted.
+	 */
+	private void evict(Segment first, K key)
+	{
+		while (weight.get() > maxWeight && first.evictEldest(key))
+		{
+		}
+
+		for (Segment segment : segments)
+		{
+			while (weight.get() > maxWeight && segment.evictEldest(key))
+			{
+			}
+		}
+	}
+
+	private Segment segmentFor(Object key)
+	{
+		if (segments.size() == 1)
+		{
+			return segments.get(0);
+		}
+
+		// Spread the bits so that keys with poor hash codes still distribute over the segments.
+		int h = key == null ? 0 : key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments.get((h & 0x7fffffff) % segments.size());
+	}
+
+	/**
+	 * Calculates the weight of a cache value. Weights are computed once, when the value is added.
+	 */
+	public static interface Weigher<V>
+	{
+		int weigh(V value);
+	}
+
+	private final class WeightedValue
+	{
+		private final V value;
+		private final int weight;
+
+		public WeightedValue(V value, int weight)
+		{
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final class Segment
+	{
+		private final LinkedHashMap<K, WeightedValue> map = new LinkedHashMap<K, WeightedValue>(16, 0.75F, true);
+
+		public synchronized V get(Object key)
+		{
+			WeightedValue value = map.get(key);
+			return value == null ? null : value.value;
+		}
+
+		public synchronized void put(K key, V value, int valueWeight)
+		{
+			WeightedValue previous = map.remove(key);
+
+			if (previous != null)
+			{
+				weight.addAndGet(-previous.weight);
+			}
+
+			// A value heavier than the whole cache could never be kept, so the previous one is just dropped.
+			if (valueWeight > maxWeight)
+			{
+				return;
+			}
+
+			map.put(key, new WeightedValue(value, valueWeight));
+			weight.addAndGet(valueWeight);
+		}
+
+		public synchronized V putIfAbsent(K key, V value, int valueWeight)
+		{
+			WeightedValue existing = map.get(key);
+
+			if (existing != null)
+			{
+				return existing.value;
+			}
+
+			if (valueWeight <= maxWeight)
+			{
+				map.put(key, new WeightedValue(value, valueWeight));
+				weight.addAndGet(valueWeight);
+			}
+
+			return null;
+		}
+
+		/**
+		 * Evicts the least recently used entry, unless it is the one with the given key. Returns false if nothing
+		 * was evicted.
+		 */
+		public synchronized boolean evictEldest(Object keep)
+		{
+			Iterator<Map.Entry<K, WeightedValue>> iterator = map.entrySet().iterator();
+
+			while (iterator.hasNext())
+			{
+				Map.Entry<K, WeightedValue> eldest = iterator.next();
+
+				if (eldest.getKey().equals(keep))
+				{
+					continue;
+				}
+
+				weight.addAndGet(-eldest.getValue().weight);
+				iterator.remove();
+				evictionCount.incrementAndGet();
+				return true;
+			}
+
+			return false;
+		}
+
+		public synchronized V remove(Object key)
+		{
+			WeightedValue value = map.remove(key);
+
+			if (value == null)
+			{
+				return null;
+			}
+
+			weight.addAndGet(-value.weight);
+			return value.value;
+		}
+
+		public synchronized void clear()
+		{
+			for (WeightedValue value : map.values())
+			{
+				weight.addAndGet(-value.weight);
+			}
+
+			map.clear();
+		}
+
+		public synchronized int size()
+		{
+			return map.size();
+		}
+	}
+}
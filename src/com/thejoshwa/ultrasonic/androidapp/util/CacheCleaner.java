@@ -8,6 +8,7 @@ import android.util.Log;
 import com.thejoshwa.ultrasonic.androidapp.domain.Playlist;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadService;
+import com.thejoshwa.ultrasonic.androidapp.service.DownloadStateIndex;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -167,6 +168,11 @@ public class CacheCleaner
 		}
 
 		Log.i(TAG, String.format("Deleted           : %s", Util.formatBytes(bytesDeleted)));
+
+		if (bytesDeleted > 0)
+		{
+			DownloadStateIndex.clear();
+		}
 	}
 
 	private static void findCandidatesForDeletion(File file, List<File> files, List<File> dirs)
@@ -223,6 +229,8 @@ public class CacheCleaner
 		{
 			filesToNotDelete.add(downloadFile.getPartialFile());
 			filesToNotDelete.add(downloadFile.getCompleteFile());
+			filesToNotDelete.add(downloadFile.getJournalFile());
+			filesToNotDelete.addAll(downloadFile.getSegmentFiles());
 		}
 
 		filesToNotDelete.add(FileUtil.getMusicDirectory(context));
@@ -20,6 +20,8 @@ package com.thejoshwa.ultrasonic.androidapp.util;
 
 import android.util.Log;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -81,21 +83,55 @@ public abstract class CancellableTask
 			public void run()
 			{
 				running.set(true);
-				Log.i(TAG, String.format("Starting thread for %s", CancellableTask.this));
-				try
-				{
-					execute();
-				}
-				finally
-				{
-					running.set(false);
-					Log.i(TAG, String.format("Stopping thread for %s", CancellableTask.this));
-				}
+				runTask();
 			}
 		});
 		thread.get().start();
 	}
 
+	/**
+	 * Runs the task on the given executor instead of a thread of its own. The task counts as running from the
+	 * moment it is submitted, and is skipped if it is cancelled before the executor gets to it.
+	 */
+	public void start(Executor executor)
+	{
+		running.set(true);
+
+		try
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					runTask();
+				}
+			});
+		}
+		catch (RejectedExecutionException x)
+		{
+			running.set(false);
+			throw x;
+		}
+	}
+
+	private void runTask()
+	{
+		Log.i(TAG, String.format("Starting thread for %s", CancellableTask.this));
+		try
+		{
+			if (!isCancelled())
+			{
+				execute();
+			}
+		}
+		finally
+		{
+			running.set(false);
+			Log.i(TAG, String.format("Stopping thread for %s", CancellableTask.this));
+		}
+	}
+
 	public static interface OnCancelListener
 	{
 		void onCancel();
@@ -115,6 +115,7 @@ public final class Constants
 	public static final String PREFERENCES_KEY_TEMP_LOSS = "tempLoss";
 	public static final String PREFERENCES_KEY_CHAT_REFRESH_INTERVAL = "chatRefreshInterval";
 	public static final String PREFERENCES_KEY_DIRECTORY_CACHE_TIME = "directoryCacheTime";
+	public static final String PREFERENCES_KEY_SERVE_STALE_DATA = "serveStaleData";
 	public static final String PREFERENCES_KEY_CLEAR_PLAYLIST = "clearPlaylist";
 	public static final String PREFERENCES_KEY_CLEAR_BOOKMARK = "clearBookmark";
 	public static final String PREFERENCES_KEY_DISC_SORT = "discAndTrackSort";
@@ -129,6 +130,10 @@ public final class Constants
 	public static final String PREFERENCES_KEY_SHOW_ALL_SONGS_BY_ARTIST = "showAllSongsByArtist";
 	public static final String PREFERENCES_KEY_SCAN_MEDIA = "scanMedia";
 	public static final String PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY = "imageLoaderConcurrency";
+	public static final String PREFERENCES_KEY_WIFI_REQUIRED_FOR_PREFETCH = "wifiRequiredForPrefetch";
+	public static final String PREFERENCES_KEY_DIRECTORY_CONCURRENCY = "directoryConcurrency";
+	public static final String PREFERENCES_KEY_PARALLEL_DOWNLOADS = "parallelDownloads";
+	public static final String PREFERENCES_KEY_DOWNLOAD_CONNECTIONS = "downloadConnections";
 
 	// Name of the preferences file.
 	public static final String PREFERENCES_FILE_NAME = "com.thejoshwa.ultrasonic.androidapp_preferences";
@@ -0,0 +1,182 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Collects the songs below a directory, loading its subdirectories in parallel.
+ * <p/>
+ * The songs are returned in the same order as a sequential depth-first walk would return them: the songs of a
+ * directory first, followed by the songs below each of its subdirectories in turn. The subdirectories are loaded
+ * ahead of the walk by a bounded number of threads, and songs are passed to {@link #onSongs} as soon as all songs
+ * before them are known, so that callers can start using the first ones while the rest are still loading.
+ * <p/>
+ * The walk stops descending once more than the maximum number of songs have been found, and is aborted by
+ * interrupting the thread that called {@link #walk}.
+ */
+public abstract class DirectoryWalker
+{
+	private final int concurrency;
+	private final int maxSongs;
+
+	public DirectoryWalker(int concurrency)
+	{
+		this(concurrency, Integer.MAX_VALUE);
+	}
+
+	public DirectoryWalker(int concurrency, int maxSongs)
+	{
+		this.concurrency = Math.max(1, concurrency);
+		this.maxSongs = maxSongs;
+	}
+
+	/**
+	 * Loads the contents of a subdirectory. Called on the walker's own threads.
+	 */
+	protected abstract MusicDirectory load(MusicDirectory.Entry directory) throws Exception;
+
+	protected boolean isSong(MusicDirectory.Entry entry)
+	{
+		return !entry.isDirectory() && !entry.isVideo();
+	}
+
+	protected boolean isSubdirectory(MusicDirectory.Entry entry)
+	{
+		return entry.isDirectory();
+	}
+
+	/**
+	 * Called in walk order with the songs of each directory, on the thread that called {@link #walk}.
+	 */
+	protected void onSongs(List<MusicDirectory.Entry> songs)
+	{
+	}
+
+	public List<MusicDirectory.Entry> walk(MusicDirectory root) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+
+		try
+		{
+			List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
+			walk(root, songs, executor);
+			return songs;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private void walk(MusicDirectory directory, List<MusicDirectory.Entry> songs, ExecutorService executor) throws Exception
+	{
+		if (songs.size() > maxSongs)
+		{
+			return;
+		}
+
+		List<MusicDirectory.Entry> found = new ArrayList<MusicDirectory.Entry>();
+
+		for (MusicDirectory.Entry child : directory.getChildren(false, true))
+		{
+			if (isSong(child))
+			{
+				found.add(child);
+			}
+		}
+
+		if (!found.isEmpty())
+		{
+			songs.addAll(found);
+			onSongs(found);
+		}
+
+		// Start loading all subdirectories now; the pool bounds how many are loaded at the same time.
+		List<Future<MusicDirectory>> subdirectories = new ArrayList<Future<MusicDirectory>>();
+
+		for (final MusicDirectory.Entry child : directory.getChildren(true, false))
+		{
+			if (isSubdirectory(child))
+			{
+				subdirectories.add(executor.submit(new Callable<MusicDirectory>()
+				{
+					@Override
+					public MusicDirectory call() throws Exception
+					{
+						return load(child);
+					}
+				}));
+			}
+		}
+
+		try
+		{
+			for (Future<MusicDirectory> subdirectory : subdirectories)
+			{
+				if (songs.size() > maxSongs)
+				{
+					break;
+				}
+
+				walk(getResult(subdirectory), songs, executor);
+			}
+		}
+		finally
+		{
+			// Anything not walked yet is no longer needed.
+			for (Future<MusicDirectory> subdirectory : subdirectories)
+			{
+				subdirectory.cancel(true);
+			}
+		}
+	}
+
+	private static MusicDirectory getResult(Future<MusicDirectory> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException x)
+		{
+			Throwable cause = x.getCause();
+
+			if (cause instanceof Exception)
+			{
+				throw (Exception) cause;
+			}
+
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+
+			throw x;
+		}
+	}
+}
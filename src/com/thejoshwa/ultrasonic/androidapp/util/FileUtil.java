@@ -137,154 +137,73 @@ public class FileUtil
 		return new File(albumArtDir, String.format("%s.jpeg", md5Hex));
 	}
 
+	/**
+	 * Returns the avatar of the given user at the given size. The bitmap may be shared, so it must not be recycled.
+	 */
 	public static Bitmap getAvatarBitmap(String username, int size, boolean highQuality)
 	{
 		if (username == null) return null;
 
-		File avatarFile = getAvatarFile(username);
-
-		SubsonicTabActivity subsonicTabActivity = SubsonicTabActivity.getInstance();
-		Bitmap bitmap = null;
-		ImageLoader imageLoader = null;
-
-		if (subsonicTabActivity != null)
-		{
-			imageLoader = subsonicTabActivity.getImageLoader();
-
-			if (imageLoader != null)
-			{
-				bitmap = imageLoader.getImageBitmap(username, size);
-			}
-		}
+		ImageLoader imageLoader = getImageLoader();
+		Bitmap bitmap = imageLoader == null ? null : imageLoader.getImageBitmap(username, size);
 
 		if (bitmap != null)
 		{
-			return bitmap.copy(bitmap.getConfig(), false);
+			return bitmap;
 		}
 
-		if (avatarFile != null && avatarFile.exists())
-		{
-			final BitmapFactory.Options opt = new BitmapFactory.Options();
-
-			if (size > 0)
-			{
-				opt.inJustDecodeBounds = true;
-				BitmapFactory.decodeFile(avatarFile.getPath(), opt);
-
-				if (highQuality)
-				{
-					opt.inDither = true;
-					opt.inPreferQualityOverSpeed = true;
-				}
-
-				opt.inPurgeable = true;
-				opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
-				opt.inJustDecodeBounds = false;
-			}
-
-			try
-			{
-				bitmap = BitmapFactory.decodeFile(avatarFile.getPath(), opt);
-			}
-			catch (Exception ex)
-			{
-				Log.e(TAG, "Exception in BitmapFactory.decodeFile()", ex);
-			}
-
-			Log.i("getAvatarBitmap", String.valueOf(size));
+		bitmap = ThumbnailCache.getBitmap(getAvatarFile(username), size, highQuality);
+		Log.i("getAvatarBitmap", String.valueOf(size));
 
-			if (bitmap != null)
-			{
-				if (imageLoader != null)
-				{
-					imageLoader.addImageToCache(bitmap, username, size);
-				}
-			}
-
-			return bitmap == null ? null : bitmap;
+		if (bitmap != null && imageLoader != null)
+		{
+			imageLoader.addImageToCache(bitmap, username, size);
 		}
 
-		return null;
+		return bitmap;
 	}
 
+	/**
+	 * Returns the album art of the given entry at the given size. The bitmap may be shared, so it must not be
+	 * recycled.
+	 */
 	public static Bitmap getAlbumArtBitmap(Context context, MusicDirectory.Entry entry, int size, boolean highQuality)
 	{
 		if (entry == null) return null;
 
-		File albumArtFile = getAlbumArtFile(context, entry);
-
-		SubsonicTabActivity subsonicTabActivity = SubsonicTabActivity.getInstance();
-		Bitmap bitmap = null;
-		ImageLoader imageLoader = null;
-
-		if (subsonicTabActivity != null)
-		{
-			imageLoader = subsonicTabActivity.getImageLoader();
-
-			if (imageLoader != null)
-			{
-				bitmap = imageLoader.getImageBitmap(entry, true, size);
-			}
-		}
+		ImageLoader imageLoader = getImageLoader();
+		Bitmap bitmap = imageLoader == null ? null : imageLoader.getImageBitmap(entry, true, size);
 
 		if (bitmap != null)
 		{
-			return bitmap.copy(bitmap.getConfig(), false);
+			return bitmap;
 		}
 
-		if (albumArtFile != null && albumArtFile.exists())
-		{
-			final BitmapFactory.Options opt = new BitmapFactory.Options();
-
-			if (size > 0)
-			{
-				opt.inJustDecodeBounds = true;
-				BitmapFactory.decodeFile(albumArtFile.getPath(), opt);
-
-				if (highQuality)
-				{
-					opt.inDither = true;
-					opt.inPreferQualityOverSpeed = true;
-				}
-
-				opt.inPurgeable = true;
-				opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
-				opt.inJustDecodeBounds = false;
-			}
-
-			try
-			{
-				bitmap = BitmapFactory.decodeFile(albumArtFile.getPath(), opt);
-			}
-			catch (Exception ex)
-			{
-				Log.e(TAG, "Exception in BitmapFactory.decodeFile()", ex);
-			}
+		bitmap = ThumbnailCache.getBitmap(getAlbumArtFile(context, entry), size, highQuality);
+		Log.i("getAlbumArtBitmap", String.valueOf(size));
 
-			Log.i("getAlbumArtBitmap", String.valueOf(size));
-
-			if (bitmap != null)
-			{
-				if (imageLoader != null)
-				{
-					imageLoader.addImageToCache(bitmap, entry, size);
-				}
-			}
-
-			return bitmap == null ? null : bitmap;
+		if (bitmap != null && imageLoader != null)
+		{
+			imageLoader.addImageToCache(bitmap, entry, size);
 		}
 
-		return null;
+		return bitmap;
+	}
+
+	private static ImageLoader getImageLoader()
+	{
+		SubsonicTabActivity subsonicTabActivity = SubsonicTabActivity.getInstance();
+		return subsonicTabActivity == null ? null : subsonicTabActivity.getImageLoader();
 	}
 
-	public static Bitmap getSampledBitmap(byte[] bytes, int size, boolean highQuality)
+	public static Bitmap getSampledBitmap(File file, int size, boolean highQuality)
 	{
 		final BitmapFactory.Options opt = new BitmapFactory.Options();
 
 		if (size > 0)
 		{
 			opt.inJustDecodeBounds = true;
-			BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+			BitmapFactory.decodeFile(file.getPath(), opt);
 
 			if (highQuality)
 			{
@@ -292,13 +211,12 @@ public class FileUtil
 				opt.inPreferQualityOverSpeed = true;
 			}
 
-			opt.inPurgeable = true;
 			opt.inSampleSize = Util.calculateInSampleSize(opt, size, Util.getScaledHeight(opt.outHeight, opt.outWidth, size));
 			opt.inJustDecodeBounds = false;
 		}
 
 		Log.i("getSampledBitmap", String.valueOf(size));
-		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, opt);
+		return BitmapFactory.decodeFile(file.getPath(), opt);
 	}
 
 	public static File getArtistDirectory(Context context, Artist artist)
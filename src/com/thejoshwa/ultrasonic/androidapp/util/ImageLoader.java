@@ -18,6 +18,7 @@
  */
 package com.thejoshwa.ultrasonic.androidapp.util;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -25,6 +26,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -38,9 +40,17 @@ import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Asynchronous loading of images, with caching.
@@ -53,8 +63,32 @@ public class ImageLoader implements Runnable
 {
 	private static final String TAG = ImageLoader.class.getSimpleName();
 
-	private final LRUCache<String, Bitmap> cache = new LRUCache<String, Bitmap>(150);
-	private final BlockingQueue<Task> queue;
+	private static final BoundedCache.Weigher<Bitmap> BITMAP_WEIGHER = new BoundedCache.Weigher<Bitmap>()
+	{
+		@Override
+		public int weigh(Bitmap bitmap)
+		{
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	};
+
+	private final BoundedCache<String, Bitmap> cache;
+	// Requests for views on screen come first, and among those the newest, as older ones are likely for rows that
+	// have been scrolled away.
+	private static final int PRIORITY_VISIBLE = 1;
+	private static final int PRIORITY_PREFETCH = 0;
+
+	private final BlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+
+	// Requests that are queued or running, by cache key, the request each view waits for, the request each view of a
+	// paused activity waited for, and the requests for images that no view is showing yet. All are guarded by the lock
+	// on tasks.
+	private final Map<String, Task> tasks = new HashMap<String, Task>();
+	private final Map<View, Task> viewTasks = new WeakHashMap<View, Task>();
+	private final Map<View, Task> pausedViews = new WeakHashMap<View, Task>();
+	private final List<Task> prefetches = new ArrayList<Task>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final Handler handler = new Handler(Looper.getMainLooper());
 	private int imageSizeDefault;
 	private final int imageSizeLarge;
 	private Bitmap largeUnknownImage;
@@ -68,7 +102,13 @@ public class ImageLoader implements Runnable
 	{
 		this.context = context;
 		this.concurrency = concurrency;
-		queue = new LinkedBlockingQueue<Task>(1000);
+
+		// Use an eighth of the heap the device gives to a normal app for the bitmap cache. The heap we can actually
+		// get may be much larger with largeHeap, but using it would only make the rest of the system evict us.
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		long cacheSize = activityManager.getMemoryClass() * 1024L * 1024L / 8;
+		Log.i(TAG, String.format("Bitmap cache size is %d KB", cacheSize / 1024));
+		cache = new BoundedCache<String, Bitmap>(cacheSize, BITMAP_WEIGHER);
 
 		Resources resources = context.getResources();
 		Drawable drawable = resources.getDrawable(R.drawable.unknown_album);
@@ -145,6 +185,7 @@ public class ImageLoader implements Runnable
 
 		if (username == null)
 		{
+			cancel(view);
 			setUnknownAvatarImage(view);
 			return;
 		}
@@ -154,17 +195,19 @@ public class ImageLoader implements Runnable
 			size = large ? imageSizeLarge : imageSizeDefault;
 		}
 
-		Bitmap bitmap = cache.get(getKey(username, size));
+		String key = getKey(username, size);
+		Bitmap bitmap = cache.get(key);
 
 		if (bitmap != null)
 		{
+			cancel(view);
 			setAvatarImageBitmap(view, username, bitmap, crossFade);
 			return;
 		}
 
 		setUnknownAvatarImage(view);
 
-		queue.offer(new Task(view, username, size, large, crossFade, highQuality));
+		request(view, key, null, username, size, large, crossFade, highQuality);
 	}
 
 	public void loadImage(View view, MusicDirectory.Entry entry, boolean large, int size, boolean crossFade, boolean highQuality)
@@ -173,6 +216,7 @@ public class ImageLoader implements Runnable
 
 		if (entry == null)
 		{
+			cancel(view);
 			setUnknownImage(view, large);
 			return;
 		}
@@ -181,6 +225,7 @@ public class ImageLoader implements Runnable
 
 		if (coverArt == null)
 		{
+			cancel(view);
 			setUnknownImage(view, large);
 			return;
 		}
@@ -190,17 +235,222 @@ public class ImageLoader implements Runnable
 			size = large ? imageSizeLarge : imageSizeDefault;
 		}
 
-		Bitmap bitmap = cache.get(getKey(coverArt, size));
+		String key = getKey(coverArt, size);
+		Bitmap bitmap = cache.get(key);
 
 		if (bitmap != null)
 		{
+			cancel(view);
 			setImageBitmap(view, entry, bitmap, crossFade);
 			return;
 		}
 
 		setUnknownImage(view, large);
 
-		queue.offer(new Task(view, entry, size, large, crossFade, highQuality));
+		request(view, key, entry, null, size, large, crossFade, highQuality);
+	}
+
+	/**
+	 * Makes the view wait for the image with the given key, dropping what it waited for before. If the image is
+	 * already being loaded for another view, both views get it from the same request.
+	 */
+	private void request(View view, String key, MusicDirectory.Entry entry, String username, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+	{
+		synchronized (tasks)
+		{
+			Task task = tasks.get(key);
+			Task previous = viewTasks.get(view);
+			pausedViews.remove(view);
+
+			if (previous != null && previous != task)
+			{
+				previous.removeView(view);
+			}
+
+			if (task == null)
+			{
+				// Not the context of the view, so that a paused request doesn't keep its activity alive.
+				task = new Task(view.getContext().getApplicationContext(), key, entry, username, size, saveToFile, highQuality, PRIORITY_VISIBLE);
+				tasks.put(key, task);
+				queue.offer(task);
+			}
+			else if (!task.started && (previous != task || task.priority != PRIORITY_VISIBLE))
+			{
+				// Asked for again, so it is now the newest request, and a view is waiting for it if it was prefetched.
+				queue.remove(task);
+				task.priority = PRIORITY_VISIBLE;
+				task.sequence = sequence.incrementAndGet();
+				queue.offer(task);
+			}
+
+			task.views.put(view, crossFade);
+			viewTasks.put(view, task);
+		}
+	}
+
+	/**
+	 * Stops loading an image for the view, such as when it is reused for another row. The request is dropped if no
+	 * other view is waiting for the same image.
+	 */
+	public void cancel(View view)
+	{
+		synchronized (tasks)
+		{
+			Task task = viewTasks.remove(view);
+			pausedViews.remove(view);
+
+			if (task != null)
+			{
+				task.removeView(view);
+			}
+		}
+	}
+
+	/**
+	 * Stops loading images for the views of the given activity while it is hidden. They are asked for again by
+	 * {@link #resume}, as the views are not bound again when the activity comes back.
+	 */
+	public void pause(Context context)
+	{
+		synchronized (tasks)
+		{
+			for (View view : new ArrayList<View>(viewTasks.keySet()))
+			{
+				if (view.getContext() == context)
+				{
+					Task task = viewTasks.get(view);
+					cancel(view);
+					pausedViews.put(view, task);
+				}
+			}
+
+			dropPrefetches(Collections.<String>emptySet());
+		}
+	}
+
+	public void resume(Context context)
+	{
+		Map<View, Task> resumed = new HashMap<View, Task>();
+
+		synchronized (tasks)
+		{
+			Iterator<Map.Entry<View, Task>> iterator = pausedViews.entrySet().iterator();
+
+			while (iterator.hasNext())
+			{
+				Map.Entry<View, Task> paused = iterator.next();
+
+				if (paused.getKey().getContext() == context)
+				{
+					resumed.put(paused.getKey(), paused.getValue());
+					iterator.remove();
+				}
+			}
+		}
+
+		for (Map.Entry<View, Task> paused : resumed.entrySet())
+		{
+			View view = paused.getKey();
+			Task task = paused.getValue();
+			Bitmap bitmap = cache.get(task.key);
+
+			if (bitmap == null)
+			{
+				request(view, task.key, task.entry, task.username, task.size, task.saveToFile, false, task.highQuality);
+			}
+			else if (task.username != null)
+			{
+				setAvatarImageBitmap(view, task.username, bitmap, false);
+			}
+			else
+			{
+				setImageBitmap(view, task.entry, bitmap, false);
+			}
+		}
+	}
+
+	/**
+	 * Loads the album art of the given entries into the cache in the given order, after all the images that views
+	 * are waiting for. The entries replace those of the last call, and the ones of those that haven't been started
+	 * are dropped.
+	 */
+	public void prefetch(Context context, Collection<MusicDirectory.Entry> entries, boolean large, int size, boolean highQuality)
+	{
+		if (size <= 0)
+		{
+			size = large ? imageSizeLarge : imageSizeDefault;
+		}
+
+		Map<String, MusicDirectory.Entry> wanted = new LinkedHashMap<String, MusicDirectory.Entry>();
+
+		for (MusicDirectory.Entry entry : entries)
+		{
+			String coverArt = entry.getCoverArt();
+
+			if (coverArt != null)
+			{
+				wanted.put(getKey(coverArt, size), entry);
+			}
+		}
+
+		synchronized (tasks)
+		{
+			dropPrefetches(wanted.keySet());
+			List<Map.Entry<String, MusicDirectory.Entry>> ordered = new ArrayList<Map.Entry<String, MusicDirectory.Entry>>(wanted.entrySet());
+
+			// Queued from the last to the first, as the newest requests are served first.
+			for (int i = ordered.size() - 1; i >= 0; i--)
+			{
+				Map.Entry<String, MusicDirectory.Entry> entry = ordered.get(i);
+				String key = entry.getKey();
+
+				if (tasks.containsKey(key) || cache.get(key) != null)
+				{
+					continue;
+				}
+
+				Task task = new Task(context.getApplicationContext(), key, entry.getValue(), null, size, large, highQuality, PRIORITY_PREFETCH);
+				tasks.put(key, task);
+				prefetches.add(task);
+				queue.offer(task);
+			}
+		}
+	}
+
+	/**
+	 * Drops the prefetched images that haven't been started.
+	 */
+	public void cancelPrefetch()
+	{
+		synchronized (tasks)
+		{
+			dropPrefetches(Collections.<String>emptySet());
+		}
+	}
+
+	/**
+	 * Drops the prefetched images that haven't been started, except those with the given keys. Called with the lock
+	 * on tasks held.
+	 */
+	private void dropPrefetches(Set<String> keep)
+	{
+		Iterator<Task> iterator = prefetches.iterator();
+
+		while (iterator.hasNext())
+		{
+			Task task = iterator.next();
+
+			if (task.started || !keep.contains(task.key))
+			{
+				iterator.remove();
+
+				if (!task.started && task.views.isEmpty())
+				{
+					queue.remove(task);
+					tasks.remove(task.key);
+				}
+			}
+		}
 	}
 
 	private static String getKey(String coverArtId, int size)
@@ -208,19 +458,26 @@ public class ImageLoader implements Runnable
 		return String.format("%s:%d", coverArtId, size);
 	}
 
+	/**
+	 * Returns the cached avatar of the given user, or null. The bitmap is shared with the views showing it, so it
+	 * must not be recycled or changed.
+	 */
 	public Bitmap getImageBitmap(String username, int size)
 	{
 		Bitmap bitmap = cache.get(getKey(username, size));
 
 		if (bitmap != null && !bitmap.isRecycled())
 		{
-			Bitmap.Config config = bitmap.getConfig();
-			return bitmap.copy(config, false);
+			return bitmap;
 		}
 
 		return null;
 	}
 
+	/**
+	 * Returns the cached album art of the given entry, or null. The bitmap is shared with the views showing it, so it
+	 * must not be recycled or changed.
+	 */
 	public Bitmap getImageBitmap(MusicDirectory.Entry entry, boolean large, int size)
 	{
 		if (entry == null)
@@ -244,8 +501,7 @@ public class ImageLoader implements Runnable
 
 		if (bitmap != null && !bitmap.isRecycled())
 		{
-			Bitmap.Config config = bitmap.getConfig();
-			return bitmap.copy(config, false);
+			return bitmap;
 		}
 
 		return null;
@@ -365,7 +621,26 @@ public class ImageLoader implements Runnable
 
 	public void clear()
 	{
-		queue.clear();
+		synchronized (tasks)
+		{
+			queue.clear();
+			viewTasks.clear();
+			pausedViews.clear();
+			prefetches.clear();
+			Iterator<Task> iterator = tasks.values().iterator();
+
+			// Requests that are running are left to finish, as their images go into the cache.
+			while (iterator.hasNext())
+			{
+				Task task = iterator.next();
+				task.views.clear();
+
+				if (!task.started)
+				{
+					iterator.remove();
+				}
+			}
+		}
 	}
 
 	@Override
@@ -376,7 +651,11 @@ public class ImageLoader implements Runnable
 			try
 			{
 				Task task = queue.take();
-				task.execute();
+
+				if (task.start())
+				{
+					task.execute();
+				}
 			}
 			catch (InterruptedException ignored)
 			{
@@ -390,74 +669,150 @@ public class ImageLoader implements Runnable
 		}
 	}
 
-	private class Task
+	private class Task implements Comparable<Task>
 	{
-		private final View view;
+		private final Context context;
+		private final String key;
 		private final MusicDirectory.Entry entry;
 		private final String username;
-		private final Handler handler;
 		private final int size;
 		private final boolean saveToFile;
-		private final boolean crossFade;
 		private final boolean highQuality;
+		private int priority;
+
+		// The views waiting for the image, each with whether to cross-fade to it. Guarded by tasks.
+		private final Map<View, Boolean> views = new LinkedHashMap<View, Boolean>();
+		private long sequence;
+		private boolean started;
 
-		public Task(View view, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+		public Task(Context context, String key, MusicDirectory.Entry entry, String username, int size, boolean saveToFile, boolean highQuality, int priority)
 		{
-			this.view = view;
+			this.context = context;
+			this.key = key;
 			this.entry = entry;
-			this.username = null;
+			this.username = username;
 			this.size = size;
 			this.saveToFile = saveToFile;
-			this.crossFade = crossFade;
 			this.highQuality = highQuality;
-			handler = new Handler();
+			this.priority = priority;
+			this.sequence = ImageLoader.this.sequence.incrementAndGet();
 		}
 
-		public Task(View view, String username, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+		@Override
+		public int compareTo(Task other)
 		{
-			this.view = view;
-			this.entry = null;
-			this.username = username;
-			this.size = size;
-			this.saveToFile = saveToFile;
-			this.crossFade = crossFade;
-			this.highQuality = highQuality;
-			handler = new Handler();
+			if (priority != other.priority)
+			{
+				return priority > other.priority ? -1 : 1;
+			}
+
+			return sequence > other.sequence ? -1 : sequence < other.sequence ? 1 : 0;
+		}
+
+		/**
+		 * Called with the lock on tasks held.
+		 */
+		private void removeView(View view)
+		{
+			views.remove(view);
+
+			if (views.isEmpty() && !started && !prefetches.contains(this))
+			{
+				queue.remove(this);
+				tasks.remove(key);
+			}
+		}
+
+		/**
+		 * Returns false if the task was cancelled while it was queued.
+		 */
+		public boolean start()
+		{
+			synchronized (tasks)
+			{
+				if (tasks.get(key) != this)
+				{
+					return false;
+				}
+
+				started = true;
+				return true;
+			}
 		}
 
 		public void execute()
 		{
+			final boolean isAvatar = this.username != null && this.entry == null;
+			Bitmap bitmap = null;
+
 			try
 			{
-				MusicService musicService = MusicServiceFactory.getMusicService(view.getContext());
-				final boolean isAvatar = this.username != null && this.entry == null;
-				final Bitmap bitmap = this.entry != null ? musicService.getCoverArt(view.getContext(), entry, size, saveToFile, highQuality, null) : musicService.getAvatar(view.getContext(), username, size, saveToFile, highQuality, null);
+				MusicService musicService = MusicServiceFactory.getMusicService(context);
+				bitmap = isAvatar ? musicService.getAvatar(context, username, size, saveToFile, highQuality, null) : musicService.getCoverArt(context, entry, size, saveToFile, highQuality, null);
 
-				if (isAvatar)
-					addImageToCache(bitmap, username, size);
-				else
-					addImageToCache(bitmap, entry, size);
+				if (bitmap != null)
+				{
+					cache.put(key, bitmap);
+				}
+			}
+			catch (Throwable x)
+			{
+				Log.e(TAG, "Failed to download album art.", x);
+			}
+
+			final Map<View, Boolean> targets;
+
+			synchronized (tasks)
+			{
+				tasks.remove(key);
+				prefetches.remove(this);
+				targets = new LinkedHashMap<View, Boolean>(views);
+				views.clear();
+			}
 
-				handler.post(new Runnable()
+			if (targets.isEmpty())
+			{
+				return;
+			}
+
+			final Bitmap result = bitmap;
+
+			handler.post(new Runnable()
+			{
+				@Override
+				public void run()
 				{
-					@Override
-					public void run()
+					for (Map.Entry<View, Boolean> target : targets.entrySet())
 					{
+						View view = target.getKey();
+
+						synchronized (tasks)
+						{
+							// The view has moved on to another image since.
+							if (viewTasks.get(view) != Task.this)
+							{
+								continue;
+							}
+
+							viewTasks.remove(view);
+						}
+
+						if (result == null)
+						{
+							continue;
+						}
+
 						if (isAvatar)
 						{
-							setAvatarImageBitmap(view, username, bitmap, crossFade);
+							setAvatarImageBitmap(view, username, result, target.getValue());
 						}
 						else
 						{
-							setImageBitmap(view, entry, bitmap, crossFade);
+							setImageBitmap(view, entry, result, target.getValue());
 						}
 					}
-				});
-			}
-			catch (Throwable x)
-			{
-				Log.e(TAG, "Failed to download album art.", x);
-			}
+				}
+			});
 		}
 	}
 }
@@ -0,0 +1,132 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.util.Log;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces concurrent requests for the same key, so that only one of them
+ * does the actual work and the others share its result.
+ * <p/>
+ * The first caller for a key runs the loader on its own thread. Callers that
+ * arrive while it is running wait for the result. Waiting is interruptible, so
+ * a waiter that is cancelled gives up without affecting the others. If the
+ * caller doing the work is cancelled, the waiters retry instead of failing
+ * with its cancellation.
+ */
+public class SingleFlight<K, V>
+{
+	private static final String TAG = SingleFlight.class.getSimpleName();
+
+	private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<K, Flight>();
+
+	public V execute(K key, Callable<V> loader) throws Exception
+	{
+		while (true)
+		{
+			Flight flight = new Flight();
+			Flight existing = flights.putIfAbsent(key, flight);
+
+			if (existing == null)
+			{
+				try
+				{
+					V result = loader.call();
+					flight.complete(result, null);
+					return result;
+				}
+				catch (Exception x)
+				{
+					flight.complete(null, x);
+					throw x;
+				}
+				catch (Error x)
+				{
+					flight.complete(null, x);
+					throw x;
+				}
+				finally
+				{
+					flights.remove(key, flight);
+				}
+			}
+
+			Log.d(TAG, String.format("Joining in-flight request for %s", key));
+
+			try
+			{
+				return existing.await();
+			}
+			catch (Exception x)
+			{
+				// A timeout is also an InterruptedIOException, but it is a failure every waiter shares.
+				boolean cancelled = x instanceof InterruptedIOException && !(x instanceof SocketTimeoutException);
+
+				if (!existing.abandoned && !cancelled)
+				{
+					throw x;
+				}
+
+				Log.d(TAG, String.format("In-flight request for %s was cancelled, retrying", key));
+			}
+		}
+	}
+
+	private final class Flight
+	{
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean abandoned;
+		private V result;
+		private Throwable error;
+
+		public void complete(V result, Throwable error)
+		{
+			// Must be known before the result is published to the waiters.
+			abandoned = Thread.currentThread().isInterrupted();
+			this.result = result;
+			this.error = error;
+			done.countDown();
+		}
+
+		public V await() throws Exception
+		{
+			// The latch makes the fields written before countDown() visible here.
+			done.await();
+
+			if (error instanceof Exception)
+			{
+				throw (Exception) error;
+			}
+
+			if (error instanceof Error)
+			{
+				throw (Error) error;
+			}
+
+			return result;
+		}
+	}
+}
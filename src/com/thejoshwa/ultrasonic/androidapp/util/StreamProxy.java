@@ -2,54 +2,62 @@ package com.thejoshwa.ultrasonic.androidapp.util;
 
 import android.util.Log;
 
-import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadService;
 
-import org.apache.http.HttpRequest;
-import org.apache.http.message.BasicHttpRequest;
-
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.StringTokenizer;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the partial file of the song being downloaded to the media player over HTTP.
+ * <p/>
+ * Data is sent straight from the file to the socket with {@link FileChannel#transferTo}, and when the player
+ * has caught up with the download the proxy waits for the downloader to write more. Range requests are
+ * answered with 206 once the length of the song is known, so the player can seek.
+ */
 public class StreamProxy implements Runnable
 {
 	private static final String TAG = StreamProxy.class.getSimpleName();
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+	// How long to wait for new data before checking again whether the download is still going.
+	private static final long DATA_WAIT_MILLIS = 1000L;
 
 	private Thread thread;
-	private boolean isRunning;
-	private ServerSocket socket;
+	private volatile boolean isRunning;
+	private ServerSocketChannel serverChannel;
 	private int port;
-	private DownloadService downloadService;
+	private final DownloadService downloadService;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
 
 	public StreamProxy(DownloadService downloadService)
 	{
+		this.downloadService = downloadService;
 
 		// Create listening socket
 		try
 		{
-			socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-			socket.setSoTimeout(5000);
-			port = socket.getLocalPort();
-			this.downloadService = downloadService;
-		}
-		catch (UnknownHostException e)
-		{ // impossible
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+			port = serverChannel.socket().getLocalPort();
 		}
 		catch (IOException e)
 		{
@@ -64,6 +72,7 @@ public class StreamProxy implements Runnable
 
 	public void start()
 	{
+		isRunning = true;
 		thread = new Thread(this);
 		thread.start();
 	}
@@ -71,71 +80,58 @@ public class StreamProxy implements Runnable
 	public void stop()
 	{
 		isRunning = false;
-		thread.interrupt();
+
+		// Closing the channel makes accept() return, and the interrupts wake up the streaming tasks.
+		Util.close(serverChannel);
+		executor.shutdownNow();
 	}
 
 	@Override
 	public void run()
 	{
-		isRunning = true;
 		while (isRunning)
 		{
 			try
 			{
-				Socket client = socket.accept();
-				if (client == null)
-				{
-					continue;
-				}
+				SocketChannel client = serverChannel.accept();
 				Log.i(TAG, "Client connected");
-
-				StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client);
-				if (task.processRequest())
-				{
-					new Thread(task).start();
-				}
-
+				executor.execute(new StreamToMediaPlayerTask(client));
 			}
-			catch (SocketTimeoutException e)
+			catch (ClosedChannelException e)
 			{
-				// Do nothing
+				break;
 			}
-			catch (IOException e)
+			catch (Exception e)
 			{
-				Log.e(TAG, "Error connecting to client", e);
+				if (isRunning)
+				{
+					Log.e(TAG, "Error connecting to client", e);
+				}
 			}
 		}
-		Log.i(TAG, "Proxy interrupted. Shutting down.");
+		Log.i(TAG, "Proxy stopped. Shutting down.");
 	}
 
 	private class StreamToMediaPlayerTask implements Runnable
 	{
+		private final SocketChannel client;
+		private long rangeStart;
+		private long rangeEnd = -1;
+		private boolean rangeRequested;
 
-		String localPath;
-		Socket client;
-		int cbSkip;
-
-		public StreamToMediaPlayerTask(Socket client)
+		public StreamToMediaPlayerTask(SocketChannel client)
 		{
 			this.client = client;
 		}
 
-		private HttpRequest readRequest()
+		/**
+		 * Reads the request, and returns the path of the requested file or null if the request is invalid.
+		 */
+		private String readRequest() throws IOException
 		{
-			HttpRequest request;
-			InputStream is;
-			String firstLine;
-			try
-			{
-				is = client.getInputStream();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8192);
-				firstLine = reader.readLine();
-			}
-			catch (IOException e)
-			{
-				Log.e(TAG, "Error parsing request", e);
-				return null;
-			}
+			// The reader may buffer past the headers, but the player sends nothing else on this connection.
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client)), 8192);
+			String firstLine = reader.readLine();
 
 			if (firstLine == null)
 			{
@@ -144,155 +140,198 @@ public class StreamProxy implements Runnable
 			}
 
 			StringTokenizer st = new StringTokenizer(firstLine);
-			String method = st.nextToken();
-			String uri = st.nextToken();
-			String realUri = uri.substring(1);
-			Log.i(TAG, realUri);
-			request = new BasicHttpRequest(method, realUri);
-			return request;
-		}
 
-		public boolean processRequest()
-		{
-			HttpRequest request = readRequest();
-			if (request == null)
+			if (st.countTokens() < 2)
 			{
-				return false;
+				Log.w(TAG, String.format("Invalid request: %s", firstLine));
+				return null;
 			}
 
-			// Read HTTP headers
-			Log.i(TAG, "Processing request");
+			st.nextToken();
+			String uri = st.nextToken();
 
-			try
+			for (String line = reader.readLine(); line != null && line.length() > 0; line = reader.readLine())
 			{
-				localPath = URLDecoder.decode(request.getRequestLine().getUri(), Constants.UTF_8);
-			}
-			catch (UnsupportedEncodingException e)
-			{
-				Log.e(TAG, "Unsupported encoding", e);
-				return false;
-			}
+				int colon = line.indexOf(':');
 
-			Log.i(TAG, String.format("Processing request for file %s", localPath));
-			File file = new File(localPath);
-			if (!file.exists())
-			{
-				Log.e(TAG, String.format("File %s does not exist", localPath));
-				return false;
+				if (colon > 0 && "Range".equalsIgnoreCase(line.substring(0, colon).trim()))
+				{
+					Matcher matcher = RANGE.matcher(line.substring(colon + 1).trim());
+
+					if (matcher.matches())
+					{
+						rangeRequested = true;
+						rangeStart = Long.parseLong(matcher.group(1));
+						rangeEnd = matcher.group(2).length() == 0 ? -1 : Long.parseLong(matcher.group(2));
+						Log.i(TAG, String.format("Range requested: %d-%d", rangeStart, rangeEnd));
+					}
+				}
 			}
 
-			return true;
+			return URLDecoder.decode(uri.substring(1), Constants.UTF_8);
 		}
 
 		@Override
 		public void run()
 		{
-			Log.i(TAG, "Streaming song in background");
-			DownloadFile downloadFile = downloadService.getCurrentPlaying();
-			MusicDirectory.Entry song = downloadFile.getSong();
-			long fileSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000 / 8;
-			Log.i(TAG, String.format("Streaming fileSize: %d", fileSize));
-
-			// Create HTTP header
-			String headers = "HTTP/1.0 200 OK\r\n";
-			headers += "Content-Type: application/octet-stream\r\n";
-			headers += "Connection: close\r\n";
-			headers += "\r\n";
-
-			long cbToSend = fileSize - cbSkip;
-			OutputStream output = null;
-			byte[] buff = new byte[64 * 1024];
+			FileInputStream input = null;
 
 			try
 			{
-				output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-				output.write(headers.getBytes());
+				String localPath = readRequest();
+
+				if (localPath == null)
+				{
+					return;
+				}
+
+				Log.i(TAG, String.format("Processing request for file %s", localPath));
+				File file = new File(localPath);
+
+				if (!file.exists())
+				{
+					Log.e(TAG, String.format("File %s does not exist", localPath));
+					writeHeaders("HTTP/1.0 404 Not Found\r\nConnection: close\r\n\r\n");
+					return;
+				}
+
+				DownloadFile downloadFile = downloadService.getCurrentPlaying();
 
-				if (!downloadFile.isWorkDone())
+				if (downloadFile != null && !file.equals(downloadFile.getPartialFile()))
 				{
-					// Loop as long as there's stuff to send
-					while (isRunning && !client.isClosed())
+					Log.w(TAG, String.format("%s is not being played, streaming it as it is", file));
+					downloadFile = null;
+				}
+
+				// The channel keeps reading the same data if the partial file is renamed when it is complete.
+				input = new FileInputStream(file);
+				FileChannel channel = input.getChannel();
+				long total = getTotalLength(downloadFile, channel);
+
+				if (!writeResponseHeaders(total))
+				{
+					return;
+				}
+
+				long position = rangeStart;
+				long end = rangeEnd >= 0 ? rangeEnd + 1 : (total >= 0 ? total : Long.MAX_VALUE);
+
+				while (isRunning && position < end)
+				{
+					long available = Math.min(channel.size(), end);
+
+					if (position < available)
 					{
-						// See if there's more to send
-						File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
-						int cbSentThisBatch = 0;
+						position += channel.transferTo(position, available - position, client);
+						continue;
+					}
 
-						if (file.exists())
+					if (downloadFile == null || downloadFile.isWorkDone() || downloadFile.isFailed())
+					{
+						// Nothing more is coming, unless the download finished since the size was read.
+						if (channel.size() <= position)
 						{
-							FileInputStream input = new FileInputStream(file);
-
-							try
-							{
-								long skip = input.skip(cbSkip);
-								int cbToSendThisBatch = input.available();
-
-								while (cbToSendThisBatch > 0)
-								{
-									int cbToRead = Math.min(cbToSendThisBatch, buff.length);
-									int cbRead = input.read(buff, 0, cbToRead);
-
-									if (cbRead == -1)
-									{
-										break;
-									}
-
-									cbToSendThisBatch -= cbRead;
-									cbToSend -= cbRead;
-									output.write(buff, 0, cbRead);
-									output.flush();
-									cbSkip += cbRead;
-									cbSentThisBatch += cbRead;
-								}
-							}
-							finally
-							{
-								input.close();
-							}
-
-							// Done regardless of whether or not it thinks it is
-							if (downloadFile.isWorkDone() && cbSkip >= file.length())
-							{
-								break;
-							}
+							break;
 						}
 
-						// If we did nothing this batch, block for a second
-						if (cbSentThisBatch == 0)
-						{
-							Log.d(TAG, String.format("Blocking until more data appears (%d)", cbToSend));
-							Util.sleepQuietly(1000L);
-						}
+						continue;
 					}
+
+					Log.d(TAG, String.format("Waiting for more data after %d bytes", position));
+					downloadFile.waitForData(position, DATA_WAIT_MILLIS);
 				}
-				else
-				{
-					Log.w(TAG, "Requesting data for completely downloaded file");
-				}
+
+				Log.i(TAG, String.format("Streamed %s up to byte %d", file, position));
+			}
+			catch (InterruptedException e)
+			{
+				Log.i(TAG, "Streaming task interrupted");
 			}
 			catch (SocketException socketException)
 			{
 				Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
 			}
-			catch (Exception e)
+			catch (IOException e)
 			{
 				Log.e(TAG, "Exception thrown from streaming task:");
 				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
 			}
+			finally
+			{
+				Util.close(input);
+				Util.close(client);
+			}
+		}
 
-			// Cleanup
-			try
+		/**
+		 * Returns the length of the song in bytes, or -1 if it is not known yet.
+		 */
+		private long getTotalLength(DownloadFile downloadFile, FileChannel channel) throws IOException
+		{
+			Integer contentLength = downloadFile == null ? null : downloadFile.getContentLength();
+
+			if (contentLength != null)
+			{
+				return contentLength;
+			}
+
+			return downloadFile == null || downloadFile.isWorkDone() ? channel.size() : -1;
+		}
+
+		/**
+		 * Answers a range request with 206 if the total length is known, and any other request with 200 for the
+		 * whole file. Returns false if nothing should be sent after the headers.
+		 */
+		private boolean writeResponseHeaders(long total) throws IOException
+		{
+			if (!rangeRequested || total < 0)
 			{
-				if (output != null)
+				rangeStart = 0;
+				rangeEnd = -1;
+
+				StringBuilder headers = new StringBuilder("HTTP/1.0 200 OK\r\n");
+				headers.append("Content-Type: application/octet-stream\r\n");
+
+				if (total >= 0)
 				{
-					output.close();
+					headers.append("Accept-Ranges: bytes\r\n");
+					headers.append(String.format("Content-Length: %d\r\n", total));
 				}
-				client.close();
+
+				headers.append("Connection: close\r\n\r\n");
+				writeHeaders(headers.toString());
+				return true;
 			}
-			catch (IOException e)
+
+			if (rangeStart >= total)
 			{
-				Log.e(TAG, "IOException while cleaning up streaming task:");
-				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
+				writeHeaders(String.format("HTTP/1.0 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */%d\r\nConnection: close\r\n\r\n", total));
+				return false;
+			}
+
+			if (rangeEnd < 0 || rangeEnd >= total)
+			{
+				rangeEnd = total - 1;
+			}
+
+			StringBuilder headers = new StringBuilder("HTTP/1.0 206 Partial Content\r\n");
+			headers.append("Content-Type: application/octet-stream\r\n");
+			headers.append("Accept-Ranges: bytes\r\n");
+			headers.append(String.format("Content-Range: bytes %d-%d/%d\r\n", rangeStart, rangeEnd, total));
+			headers.append(String.format("Content-Length: %d\r\n", rangeEnd - rangeStart + 1));
+			headers.append("Connection: close\r\n\r\n");
+			writeHeaders(headers.toString());
+			return true;
+		}
+
+		private void writeHeaders(String headers) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(headers.getBytes(Constants.UTF_8));
+
+			while (buffer.hasRemaining())
+			{
+				client.write(buffer);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes images from the artwork directory at the size they are shown in, keeping a copy of each size on disk
+ * so that the full image only has to be decoded once.
+ */
+public final class ThumbnailCache
+{
+	private static final String TAG = ThumbnailCache.class.getSimpleName();
+
+	private static final int THUMBNAIL_QUALITY = 90;
+
+	// Full-size images are decoded into these bitmaps when they can be, since they are thrown away after scaling.
+	private static final BitmapPool POOL = new BitmapPool(4 * 1024 * 1024);
+
+	private ThumbnailCache()
+	{
+	}
+
+	/**
+	 * Returns the image in the given file scaled to the given width, or null if it can't be decoded.
+	 */
+	public static Bitmap getBitmap(File original, int size, boolean highQuality)
+	{
+		if (original == null || !original.exists())
+		{
+			return null;
+		}
+
+		File thumbnail = getThumbnailFile(original, size);
+
+		if (thumbnail != null && thumbnail.exists() && thumbnail.lastModified() >= original.lastModified())
+		{
+			Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath(), createOptions(highQuality));
+
+			if (bitmap != null)
+			{
+				return bitmap;
+			}
+
+			Log.w(TAG, String.format("Failed to decode %s", thumbnail));
+			thumbnail.delete();
+		}
+
+		BitmapFactory.Options options = createOptions(highQuality);
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(original.getPath(), options);
+		options.inJustDecodeBounds = false;
+
+		if (options.outWidth <= 0 || options.outHeight <= 0)
+		{
+			return null;
+		}
+
+		if (size <= 0 || options.outWidth <= size)
+		{
+			return BitmapFactory.decodeFile(original.getPath(), options);
+		}
+
+		options.inSampleSize = Util.calculateInSampleSize(options, size, Util.getScaledHeight(options.outHeight, options.outWidth, size));
+		Bitmap sampled = decodeFromPool(original, options);
+
+		if (sampled == null)
+		{
+			return null;
+		}
+
+		Bitmap bitmap = Util.scaleBitmap(sampled, size);
+
+		if (bitmap != sampled)
+		{
+			POOL.put(sampled);
+		}
+
+		if (thumbnail != null)
+		{
+			save(bitmap, thumbnail);
+		}
+
+		return bitmap;
+	}
+
+	private static BitmapFactory.Options createOptions(boolean highQuality)
+	{
+		BitmapFactory.Options options = new BitmapFactory.Options();
+
+		if (highQuality)
+		{
+			options.inDither = true;
+			options.inPreferQualityOverSpeed = true;
+		}
+
+		return options;
+	}
+
+	private static Bitmap decodeFromPool(File file, BitmapFactory.Options options)
+	{
+		POOL.prepare(options);
+
+		try
+		{
+			return BitmapFactory.decodeFile(file.getPath(), options);
+		}
+		catch (IllegalArgumentException x)
+		{
+			// Thrown when the image doesn't fit into the pooled bitmap after all.
+			Log.w(TAG, String.format("Failed to reuse bitmap for %s", file), x);
+			options.inBitmap = null;
+			return BitmapFactory.decodeFile(file.getPath(), options);
+		}
+	}
+
+	private static File getThumbnailFile(File original, int size)
+	{
+		File thumbnailDir = new File(original.getParentFile(), "thumbnails");
+
+		if (!thumbnailDir.exists() && !thumbnailDir.mkdirs())
+		{
+			return null;
+		}
+
+		String name = original.getName();
+		int dot = name.lastIndexOf('.');
+
+		if (dot > 0)
+		{
+			name = name.substring(0, dot);
+		}
+
+		return new File(thumbnailDir, String.format("%s-%d.jpeg", name, size));
+	}
+
+	private static void save(Bitmap bitmap, File thumbnail)
+	{
+		// Written to a temporary file of its own first, so that a partly written thumbnail is never read, and
+		// threads saving the same thumbnail at once don't write into each other's file.
+		File partial = null;
+		OutputStream out = null;
+
+		try
+		{
+			partial = File.createTempFile(thumbnail.getName(), ".partial", thumbnail.getParentFile());
+			out = new FileOutputStream(partial);
+			bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, out);
+			out.close();
+			out = null;
+
+			if (!partial.renameTo(thumbnail))
+			{
+				throw new IOException(String.format("Failed to rename %s", partial));
+			}
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to save thumbnail %s", thumbnail), x);
+
+			if (partial != null)
+			{
+				partial.delete();
+			}
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+}
@@ -42,6 +42,15 @@ public class TimeLimitedCache<T>
 		return System.currentTimeMillis() < expires ? value.get() : null;
 	}
 
+	/**
+	 * Returns the cached value even if it has expired, as long as it has not been cleared or garbage collected.
+	 */
+	public T getStale()
+	{
+		SoftReference<T> reference = value;
+		return reference == null ? null : reference.get();
+	}
+
 	public void set(T value)
 	{
 		set(value, ttlMillis, TimeUnit.MILLISECONDS);
@@ -66,8 +66,6 @@ import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadService;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadServiceImpl;
 
-import org.apache.http.HttpEntity;
-
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
@@ -403,15 +401,6 @@ public class Util extends DownloadActivity
 		return context.getSharedPreferences(Constants.PREFERENCES_FILE_NAME, 0);
 	}
 
-	public static String getContentType(HttpEntity entity)
-	{
-		if (entity == null || entity.getContentType() == null)
-		{
-			return null;
-		}
-		return entity.getContentType().getValue();
-	}
-
 	public static int getRemainingTrialDays(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -786,6 +775,41 @@ public class Util extends DownloadActivity
 		return preferences.getBoolean(Constants.PREFERENCES_KEY_WIFI_REQUIRED_FOR_DOWNLOAD, false);
 	}
 
+	/**
+	 * Returns whether data on the active network may cost the user, that is whether it is neither Wi-Fi nor
+	 * ethernet.
+	 */
+	public static boolean isNetworkMetered(Context context)
+	{
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = manager.getActiveNetworkInfo();
+
+		if (networkInfo == null)
+		{
+			return false;
+		}
+
+		int type = networkInfo.getType();
+		return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	/**
+	 * Returns whether album art may be loaded before it is shown, which may be limited to Wi-Fi.
+	 */
+	public static boolean isCoverArtPrefetchAllowed(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+
+		if (isOffline(context) || !preferences.getBoolean(Constants.PREFERENCES_KEY_WIFI_REQUIRED_FOR_PREFETCH, true))
+		{
+			return true;
+		}
+
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo networkInfo = manager.getActiveNetworkInfo();
+		return networkInfo != null && networkInfo.getType() == ConnectivityManager.TYPE_WIFI;
+	}
+
 	public static boolean shouldDisplayBitrateWithArtist(Context context)
 	{
 		SharedPreferences preferences = getPreferences(context);
@@ -908,6 +932,11 @@ public class Util extends DownloadActivity
 
 	public static Bitmap scaleBitmap(Bitmap bitmap, int size)
 	{
+		if (bitmap == null || bitmap.getWidth() == size)
+		{
+			return bitmap;
+		}
+
 		return Bitmap.createScaledBitmap(bitmap, size, getScaledHeight(bitmap, size), true);
 	}
 
@@ -1429,6 +1458,12 @@ public class Util extends DownloadActivity
 		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_DIRECTORY_CACHE_TIME, "300"));
 	}
 
+	public static boolean getShouldServeStaleData(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_SERVE_STALE_DATA, true);
+	}
+
 	public static boolean isNullOrWhiteSpace(String string)
 	{
 		return string == null || string.isEmpty() || string.trim().isEmpty();
@@ -1672,4 +1707,22 @@ public class Util extends DownloadActivity
 		SharedPreferences preferences = getPreferences(context);
 		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY, "5"));
 	}
+
+	public static int getDirectoryConcurrency(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_DIRECTORY_CONCURRENCY, "4"));
+	}
+
+	public static int getParallelDownloads(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_PARALLEL_DOWNLOADS, "2"));
+	}
+
+	public static int getDownloadConnections(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_DOWNLOAD_CONNECTIONS, "1"));
+	}
 }
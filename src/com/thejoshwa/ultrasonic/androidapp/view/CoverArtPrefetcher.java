@@ -0,0 +1,116 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.thejoshwa.ultrasonic.androidapp.view;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+import com.thejoshwa.ultrasonic.androidapp.activity.SubsonicTabActivity;
+import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory.Entry;
+import com.thejoshwa.ultrasonic.androidapp.util.ImageLoader;
+import com.thejoshwa.ultrasonic.androidapp.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the album art of the rows a list is scrolling towards, so that it is in the cache when they are shown.
+ * The faster the list scrolls, the further ahead it looks.
+ */
+public class CoverArtPrefetcher implements AbsListView.OnScrollListener
+{
+	// How far ahead to look, in seconds of scrolling at the current speed, on top of one screen of rows.
+	private static final float LOOKAHEAD_SECONDS = 0.5F;
+	private static final int MAX_SCREENS = 3;
+
+	private final SubsonicTabActivity activity;
+	private int lastFirstVisible = -1;
+	private long lastScrollTime;
+	private float velocity;
+	private boolean forward = true;
+
+	public CoverArtPrefetcher(SubsonicTabActivity activity)
+	{
+		this.activity = activity;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState)
+	{
+		if (scrollState == SCROLL_STATE_IDLE)
+		{
+			velocity = 0.0F;
+			prefetch(view, view.getFirstVisiblePosition(), view.getChildCount(), view.getCount());
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		if (firstVisibleItem == lastFirstVisible || visibleItemCount == 0)
+		{
+			return;
+		}
+
+		long now = SystemClock.uptimeMillis();
+
+		if (lastFirstVisible >= 0 && now > lastScrollTime)
+		{
+			// Rows per second, smoothed over the last few rows.
+			float instant = (firstVisibleItem - lastFirstVisible) * 1000.0F / (now - lastScrollTime);
+			velocity = (velocity + instant) / 2.0F;
+			forward = firstVisibleItem > lastFirstVisible;
+		}
+
+		lastFirstVisible = firstVisibleItem;
+		lastScrollTime = now;
+		prefetch(view, firstVisibleItem, visibleItemCount, totalItemCount);
+	}
+
+	private void prefetch(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount)
+	{
+		ImageLoader imageLoader = activity.getImageLoader();
+
+		if (!Util.isCoverArtPrefetchAllowed(activity))
+		{
+			imageLoader.cancelPrefetch();
+			return;
+		}
+
+		int rows = Math.min(visibleItemCount * MAX_SCREENS, visibleItemCount + Math.round(Math.abs(velocity) * LOOKAHEAD_SECONDS));
+		int start = forward ? firstVisibleItem + visibleItemCount : Math.max(0, firstVisibleItem - rows);
+		int end = forward ? Math.min(totalItemCount, start + rows) : firstVisibleItem;
+
+		List<Entry> entries = new ArrayList<Entry>(Math.max(0, end - start));
+
+		// Nearest rows first.
+		for (int i = 0; i < end - start; i++)
+		{
+			Object item = view.getItemAtPosition(forward ? start + i : end - 1 - i);
+
+			// Only albums are shown with their art.
+			if (item instanceof Entry && ((Entry) item).isDirectory())
+			{
+				entries.add((Entry) item);
+			}
+		}
+
+		imageLoader.prefetch(activity, entries, false, 0, true);
+	}
+}
@@ -34,13 +34,12 @@ import com.thejoshwa.ultrasonic.androidapp.domain.MusicDirectory.Entry;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadService;
 import com.thejoshwa.ultrasonic.androidapp.service.DownloadServiceImpl;
+import com.thejoshwa.ultrasonic.androidapp.service.DownloadStateIndex;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicService;
 import com.thejoshwa.ultrasonic.androidapp.service.MusicServiceFactory;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 import com.thejoshwa.ultrasonic.androidapp.util.VideoPlayerType;
 
-import java.io.File;
-
 /**
  * Used to display songs in a {@code ListView}.
  *
@@ -149,10 +148,7 @@ public class SongView extends UpdateView implements Checkable
 
 		this.song = song;
 
-		if (downloadService != null)
-		{
-			this.downloadFile = downloadService.forSong(song);
-		}
+		this.downloadFile = downloadService == null ? null : downloadService.forSong(song);
 
 		StringBuilder artist = new StringBuilder(60);
 
@@ -306,16 +302,21 @@ public class SongView extends UpdateView implements Checkable
 			return;
 		}
 
-		downloadFile = downloadService.forSong(this.song);
-		File partialFile = downloadFile.getPartialFile();
+		if (downloadFile == null)
+		{
+			downloadFile = downloadService.forSong(this.song);
+		}
+
+		DownloadStateIndex.Status status = DownloadStateIndex.get(downloadFile);
 
-		if (downloadFile.isWorkDone())
+		if (status.isDone())
 		{
-			ImageType newLeftImageType = downloadFile.isSaved() ? ImageType.unpin : ImageType.downloaded;
+			boolean saved = status.getState() == DownloadStateIndex.State.SAVED;
+			ImageType newLeftImageType = saved ? ImageType.unpin : ImageType.downloaded;
 
 			if (this.leftImageType != newLeftImageType)
 			{
-				this.leftImage = downloadFile.isSaved() ? unpinImage : downloadedImage;
+				this.leftImage = saved ? unpinImage : downloadedImage;
 				this.leftImageType = newLeftImageType;
 			}
 		}
@@ -325,11 +326,11 @@ public class SongView extends UpdateView implements Checkable
 			this.leftImage = null;
 		}
 
-		if (downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && partialFile.exists())
+		if (status.getState() == DownloadStateIndex.State.DOWNLOADING)
 		{
 			if (this.viewHolder.status != null)
 			{
-				this.viewHolder.status.setText(Util.formatLocalizedBytes(partialFile.length(), this.context));
+				this.viewHolder.status.setText(Util.formatLocalizedBytes(status.getBytes(), this.context));
 			}
 
 			this.rightImageType = ImageType.downloading;
@@ -389,7 +390,8 @@ public class SongView extends UpdateView implements Checkable
 			}
 		}
 
-		boolean playing = downloadService.getCurrentPlaying() == downloadFile;
+		DownloadFile currentPlaying = downloadService.getCurrentPlaying();
+		boolean playing = currentPlaying != null && currentPlaying.getSong().equals(song);
 
 		if (playing)
 		{
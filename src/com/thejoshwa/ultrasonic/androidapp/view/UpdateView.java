@@ -8,6 +8,8 @@ import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.LinearLayout;
 
+import com.thejoshwa.ultrasonic.androidapp.service.DownloadFile;
+import com.thejoshwa.ultrasonic.androidapp.service.DownloadProgressBus;
 import com.thejoshwa.ultrasonic.androidapp.util.Util;
 
 import java.util.ArrayList;
@@ -24,6 +26,11 @@ public class UpdateView extends LinearLayout
 	private static Runnable updateRunnable;
 	private static Context context;
 
+	// Download progress refreshes the views early, but not more often than this.
+	private static final long MIN_PROGRESS_UPDATE_INTERVAL = 500L;
+	private static volatile long lastProgressUpdate;
+	private static boolean updating;
+
 	public UpdateView(Context context)
 	{
 		super(context);
@@ -57,6 +64,21 @@ public class UpdateView extends LinearLayout
 			}
 		};
 
+		DownloadProgressBus.register(new DownloadProgressBus.Listener()
+		{
+			@Override
+			public void onProgress(DownloadFile downloadFile, long bytes)
+			{
+				requestUpdate(false);
+			}
+
+			@Override
+			public void onStateChanged(DownloadFile downloadFile, DownloadProgressBus.State state)
+			{
+				requestUpdate(true);
+			}
+		});
+
 		new Thread(new Runnable()
 		{
 			@Override
@@ -71,6 +93,33 @@ public class UpdateView extends LinearLayout
 		}).start();
 	}
 
+	/**
+	 * Updates the views now instead of at the next refresh, unless they are being updated already.
+	 */
+	private static void requestUpdate(boolean force)
+	{
+		long now = System.currentTimeMillis();
+
+		if (!force && now - lastProgressUpdate < MIN_PROGRESS_UPDATE_INTERVAL)
+		{
+			return;
+		}
+
+		lastProgressUpdate = now;
+		uiHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!updating && backgroundHandler != null)
+				{
+					uiHandler.removeCallbacks(updateRunnable);
+					updateAll();
+				}
+			}
+		});
+	}
+
 	private static void updateAll()
 	{
 		try
@@ -85,6 +134,7 @@ public class UpdateView extends LinearLayout
 				}
 			}
 
+			updating = true;
 			updateAllLive(views);
 		}
 		catch (Throwable x)
@@ -112,6 +162,7 @@ public class UpdateView extends LinearLayout
 					Log.w(TAG, "Error when updating song views.", x);
 				}
 
+				updating = false;
 				uiHandler.postDelayed(updateRunnable, Util.getViewRefreshInterval(context));
 			}
 		};